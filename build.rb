@@ -13,6 +13,15 @@ FLAGS = {
 	'A' => 'YKPIV_ATTESTATION',
 	'x' => 'APPLET_EXTLEN',
 	'L' => 'APPLET_LOW_TRANSIENT',
+	'B' => 'APPLET_BESTFIT_ALLOC',
+	'I' => 'APPLET_INSTRUMENT',
+	'T' => 'APPLET_TRACE',
+	'K' => 'PIV_KEY_POOL',
+	'z' => 'APPLET_LAZY_CRYPTO',
+	'W' => 'APPLET_ARENA',
+	'O' => 'PIV_OBJECT_STORE',
+	'C' => 'PIV_COMPRESS_CERTS',
+	'G' => 'APPLET_RESUME_RESPONSE',
 	'a' => 'PIV_SUPPORT_AES',
 	'D' => 'PIV_SUPPORT_3DES'
 }
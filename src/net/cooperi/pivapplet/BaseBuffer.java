@@ -31,6 +31,7 @@ public class BaseBuffer implements Buffer {
 	private static final short ST_RPOS = 0;
 	private static final short ST_WPOS = 1;
 	private static final short ST_AMASK = 2;
+	private static final short ST_PEAK = 3;
 
 	private byte[] data;
 	public boolean isTransient;
@@ -46,7 +47,7 @@ public class BaseBuffer implements Buffer {
 		manager = mgr;
 		data = null;
 		offsetStep = 0;
-		state = JCSystem.makeTransientShortArray((short)(ST_AMASK + 1),
+		state = JCSystem.makeTransientShortArray((short)(ST_PEAK + 1),
 		    JCSystem.CLEAR_ON_DESELECT);
 		isTransient = false;
 	}
@@ -73,6 +74,37 @@ public class BaseBuffer implements Buffer {
 	setMask(final short mask)
 	{
 		state[ST_AMASK] |= mask;
+		notePeak();
+	}
+
+	/* Number of pieces (out of 16) currently allocated */
+	public short
+	usedPieces()
+	{
+		short m = state[ST_AMASK];
+		short n = 0;
+		while (m != 0) {
+			m &= (short)(m - 1);
+			++n;
+		}
+		return (n);
+	}
+
+	/* Most pieces ever allocated at once since the applet was selected */
+	public short
+	peakPieces()
+	{
+		return (state[ST_PEAK]);
+	}
+
+	private void
+	notePeak()
+	{
+		final short n = usedPieces();
+		if (n > state[ST_PEAK]) {
+			state[ST_PEAK] = n;
+			manager.notePeak(index, n);
+		}
 	}
 
 	public void
@@ -82,11 +114,53 @@ public class BaseBuffer implements Buffer {
 		state[ST_AMASK] &= invMask;
 	}
 
+//#if APPLET_BESTFIT_ALLOC
+	/*
+	 * Finds the smallest run of free pieces in this buffer which is at
+	 * least "bits" pieces long. Returns -1 if there isn't one, or else the
+	 * run's first piece and the number of pieces left over in it (its
+	 * "waste"), packed together as (waste << 5) | start.
+	 */
+	public short
+	findFreeRun(final short bits)
+	{
+		final short amask = state[ST_AMASK];
+		short bestStart = -1;
+		short bestWaste = 16;
+		short start = 0;
+
+		while (start < 16) {
+			if ((short)(amask & (short)((short)1 << start)) != 0) {
+				++start;
+				continue;
+			}
+			short end = start;
+			while (end < 16 &&
+			    (short)(amask & (short)((short)1 << end)) == 0) {
+				++end;
+			}
+			final short waste = (short)((short)(end - start) - bits);
+			if (waste >= 0 && waste < bestWaste) {
+				bestStart = start;
+				bestWaste = waste;
+				if (waste == 0)
+					break;
+			}
+			start = end;
+		}
+
+		if (bestStart < 0)
+			return ((short)-1);
+		return ((short)((short)(bestWaste << 5) | bestStart));
+	}
+//#endif
+
 	public boolean
 	setMaskIfAvailable(final short mask)
 	{
 		if ((short)(mask & state[ST_AMASK]) == 0) {
 			state[ST_AMASK] |= mask;
+			notePeak();
 			return (true);
 		}
 		return (false);
@@ -180,18 +254,33 @@ public class BaseBuffer implements Buffer {
 			return;
 
 		if (index > RAM_ALLOC_MAX_INDEX) {
-			isTransient = false;
-			data = new byte[EEPROM_ALLOC_SIZE];
-			offsetStep = (short)((short)data.length >> 4);
+			allocPersistent();
 			return;
 		}
 
+		if (allocTransient())
+			return;
+
+		allocPersistent();
+	}
+
+	/*
+	 * Tries to give this buffer transient memory (first RAM_ALLOC_SIZE,
+	 * then RAM_ALLOC_SIZE_2). Returns false if the card is out of
+	 * transient space.
+	 */
+	public boolean
+	allocTransient()
+	{
+		if (data != null)
+			return (isTransient);
+
 		try {
 			data = JCSystem.makeTransientByteArray(RAM_ALLOC_SIZE,
 			    JCSystem.CLEAR_ON_DESELECT);
 			isTransient = true;
 			offsetStep = (short)((short)data.length >> 4);
-			return;
+			return (true);
 		} catch (SystemException ex) {
 			if (ex.getReason() != SystemException.NO_TRANSIENT_SPACE) {
 				throw (ex);
@@ -203,15 +292,27 @@ public class BaseBuffer implements Buffer {
 			    JCSystem.CLEAR_ON_DESELECT);
 			isTransient = true;
 			offsetStep = (short)((short)data.length >> 4);
-			return;
+			manager.countEvent(BufferManager.STAT_RAM_SMALL);
+			return (true);
 		} catch (SystemException ex) {
 			if (ex.getReason() != SystemException.NO_TRANSIENT_SPACE) {
 				throw (ex);
 			}
 		}
 
+		manager.countEvent(BufferManager.STAT_RAM_EXHAUSTED);
+		return (false);
+	}
+
+	public void
+	allocPersistent()
+	{
+		if (data != null)
+			return;
+
 		isTransient = false;
 		data = new byte[EEPROM_ALLOC_SIZE];
 		offsetStep = (short)((short)data.length >> 4);
+		manager.countEvent(BufferManager.STAT_EEPROM_ALLOC);
 	}
 }
@@ -9,6 +9,8 @@
 package net.cooperi.pivapplet;
 
 import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
+import javacard.framework.Util;
 
 /*
  * BufferManager represents a simple first-fit memory allocator. It keeps an
@@ -33,6 +35,23 @@ import javacard.framework.JCSystem;
  * rx some data, then encrypt part of it, put the encrypted data in a temp
  * buffer, then release all the rx state to start txing, but we need to keep
  * that ciphertext to put it into the tx payload).
+ *
+ * Builds with APPLET_BESTFIT_ALLOC swap the first-fit search for a best-fit
+ * one which also prefers transient memory over EEPROM (see allocBestFit()).
+ *
+ * We also keep a few counters of how often allocation had to settle for less
+ * than it wanted (smaller transient buffers, EEPROM, or nothing at all), both
+ * since the applet was selected and over the lifetime of the applet, along
+ * with the peak occupancy of each BaseBuffer. These are read out through
+ * INS_SG_DEBUG (see writeStats()) and are what we use to decide how big the
+ * transient allocations can be on a given card model.
+ *
+ * In APPLET_ARENA builds we also own the "arena": one small transient array
+ * which the fixed-size scratch spaces used elsewhere (e.g. the GENERAL
+ * AUTHENTICATE challenge and IV, and TlvWriter's tag header space) are carved
+ * out of at construction time with carve(), rather than each of them being
+ * its own transient array. Every transient array costs some overhead on the
+ * card and leaves another gap between the BaseBuffers' chunks.
  */
 public class BufferManager {
 /*#if APPLET_LOW_TRANSIENT
@@ -41,15 +60,137 @@ public class BufferManager {
 	public static final byte MAX_BUFS = 10;
 //#endif
 
+	/* A BaseBuffer got RAM_ALLOC_SIZE_2 instead of RAM_ALLOC_SIZE */
+	public static final byte STAT_RAM_SMALL = 0;
+	/* A BaseBuffer wanted transient memory and couldn't get any */
+	public static final byte STAT_RAM_EXHAUSTED = 1;
+	/* A BaseBuffer was allocated in EEPROM */
+	public static final byte STAT_EEPROM_ALLOC = 2;
+	/* alloc() could not find space for a request */
+	public static final byte STAT_ALLOC_FAIL = 3;
+	/* An SGList threw SW_RESERVE_FAILURE */
+	public static final byte STAT_RESERVE_FAIL = 4;
+	public static final byte STAT_MAX = STAT_RESERVE_FAIL;
+
+//#if APPLET_ARENA
+	/* Big enough for everything that gets carve()d at install time */
+	public static final short ARENA_SIZE = 48;
+
+	private final byte[] arena;
+	private short arenaUsed = 0;
+//#endif
+
 	private final BaseBuffer[] buffers;
 	public boolean gcBlewUp = false;
 
+	private final short[] selStats;
+	private final short[] lifeStats;
+	private final byte[] lifePeak;
+
 	public
 	BufferManager()
 	{
 		buffers = new BaseBuffer[MAX_BUFS];
 		for (short i = 0; i < MAX_BUFS; ++i)
 			buffers[i] = new BaseBuffer(this, i);
+		selStats = JCSystem.makeTransientShortArray(
+		    (short)(STAT_MAX + 1), JCSystem.CLEAR_ON_DESELECT);
+		lifeStats = new short[STAT_MAX + 1];
+		lifePeak = new byte[MAX_BUFS];
+//#if APPLET_ARENA
+		arena = JCSystem.makeTransientByteArray(ARENA_SIZE,
+		    JCSystem.CLEAR_ON_DESELECT);
+//#endif
+	}
+
+//#if APPLET_ARENA
+	public byte[]
+	arena()
+	{
+		return (arena);
+	}
+
+	/*
+	 * Reserves len bytes of the arena for good, returning their offset.
+	 * Only meant to be called from constructors.
+	 */
+	public short
+	carve(final short len)
+	{
+		if ((short)(arenaUsed + len) > ARENA_SIZE)
+			SystemException.throwIt(SystemException.NO_TRANSIENT_SPACE);
+		final short off = arenaUsed;
+		arenaUsed += len;
+		return (off);
+	}
+//#endif
+
+	public void
+	countEvent(final byte stat)
+	{
+		if (selStats[stat] != (short)0x7FFF)
+			selStats[stat]++;
+		if (lifeStats[stat] != (short)0x7FFF)
+			lifeStats[stat]++;
+	}
+
+	/* Called by BaseBuffer when its selection-lifetime peak goes up */
+	public void
+	notePeak(final short index, final short pieces)
+	{
+		if (pieces > lifePeak[index])
+			lifePeak[index] = (byte)pieces;
+	}
+
+	/*
+	 * Writes out the allocator statistics as a series of TLVs:
+	 *
+	 *   80 - per-selection counters, one short each in STAT_* order
+	 *   81 - lifetime counters, same layout as 80
+	 *   82 - per-BaseBuffer records of 7 bytes each:
+	 *          index (1), flags (1; 01 = allocated, 02 = transient),
+	 *          size (2), pieces in use (1), peak pieces in use since
+	 *          selection (1), lifetime peak pieces in use (1)
+	 *
+	 * New counters only ever get added to the end of 80/81, and new
+	 * fields to the end of the 82 records, so readers should use the
+	 * lengths rather than assuming them.
+	 */
+	public short
+	writeStats(final byte[] buf, short off)
+	{
+		short i;
+
+		buf[off++] = (byte)0x80;
+		buf[off++] = (byte)((STAT_MAX + 1) * 2);
+		for (i = 0; i <= STAT_MAX; ++i)
+			off = Util.setShort(buf, off, selStats[i]);
+
+		buf[off++] = (byte)0x81;
+		buf[off++] = (byte)((STAT_MAX + 1) * 2);
+		for (i = 0; i <= STAT_MAX; ++i)
+			off = Util.setShort(buf, off, lifeStats[i]);
+
+		buf[off++] = (byte)0x82;
+		buf[off++] = (byte)(MAX_BUFS * 7);
+		for (i = 0; i < MAX_BUFS; ++i) {
+			final BaseBuffer buffer = buffers[i];
+			final byte[] data = buffer.data();
+			byte status = (byte)0;
+			if (data != null)
+				status |= (byte)0x01;
+			if (data != null && buffer.isTransient)
+				status |= (byte)0x02;
+			buf[off++] = (byte)i;
+			buf[off++] = status;
+			off = Util.setShort(buf, off,
+			    (data == null) ? (short)0 : (short)data.length);
+			buf[off++] = (byte)buffer.usedPieces();
+			buf[off++] = (byte)buffer.peakPieces();
+			buf[off++] = lifePeak[i];
+		}
+
+		return (off);
 	}
 
 	public void
@@ -101,6 +242,10 @@ public class BufferManager {
 
 		buf.free();
 
+/*#if APPLET_BESTFIT_ALLOC
+		if (allocBestFit(size, buf))
+			return (true);
+#else*/
 		for (short idx = 0; idx < MAX_BUFS; ++idx) {
 			final BaseBuffer buffer = buffers[idx];
 
@@ -174,9 +319,121 @@ public class BufferManager {
 				return (true);
 			}
 		}
+//#endif
+		countEvent(STAT_ALLOC_FAIL);
+//#if APPLET_TRACE
+		Trace.event(Trace.A_ALLOC_FAIL);
+//#endif
+		return (false);
+	}
+
+//#if APPLET_BESTFIT_ALLOC
+	/*
+	 * Best-fit allocation, used in place of the first-fit scan above when
+	 * built with APPLET_BESTFIT_ALLOC.
+	 *
+	 * We look for the free run of pieces that fits the request with the
+	 * least left over, trying in order:
+	 *  1. the transient BaseBuffers we already have
+	 *  2. a new transient BaseBuffer
+	 *  3. the EEPROM BaseBuffers we already have
+	 *  4. a new EEPROM BaseBuffer
+	 *
+	 * This way an exactly-fitting hole gets used before a bigger one is
+	 * split up, and fragmented transient space gets used before we start
+	 * spooling data into EEPROM.
+	 */
+	private boolean
+	allocBestFit(final short size, final TransientBuffer buf)
+	{
+		short idx;
+
+		if (allocFromExisting(size, buf, true))
+			return (true);
+
+		for (idx = 0; idx <= BaseBuffer.RAM_ALLOC_MAX_INDEX &&
+		    idx < MAX_BUFS; ++idx) {
+			final BaseBuffer buffer = buffers[idx];
+			if (buffer.data() != null)
+				continue;
+			if (buffer.allocTransient() &&
+			    allocFromExisting(size, buf, true)) {
+				return (true);
+			}
+			break;
+		}
+
+		if (allocFromExisting(size, buf, false))
+			return (true);
+
+		for (idx = 0; idx < MAX_BUFS; ++idx) {
+			final BaseBuffer buffer = buffers[idx];
+			if (buffer.data() != null)
+				continue;
+			buffer.allocPersistent();
+			return (allocFromExisting(size, buf, false));
+		}
+
 		return (false);
 	}
 
+	private boolean
+	allocFromExisting(final short size, final TransientBuffer buf,
+	    final boolean wantTransient)
+	{
+		BaseBuffer best = null;
+		short bestStart = 0;
+		short bestBits = 0;
+		short bestWaste = (short)0x7FFF;
+
+		for (short idx = 0; idx < MAX_BUFS; ++idx) {
+			final BaseBuffer buffer = buffers[idx];
+
+			if (buffer.data() == null ||
+			    buffer.isTransient != wantTransient ||
+			    buffer.maskFull()) {
+				continue;
+			}
+
+			final short offsetStep = buffer.offsetStep;
+			short bits = 1;
+			short baseSize = offsetStep;
+			while (baseSize < size && bits <= 16) {
+				++bits;
+				baseSize += offsetStep;
+			}
+			if (bits > 16)
+				continue;
+
+			final short fit = buffer.findFreeRun(bits);
+			if (fit < 0)
+				continue;
+
+			/* Compare waste in bytes, since piece sizes differ */
+			final short waste = (short)((short)(fit >> 5) * offsetStep);
+			if (waste < bestWaste) {
+				best = buffer;
+				bestStart = (short)(fit & (short)0x1F);
+				bestBits = bits;
+				bestWaste = waste;
+				if (waste == 0)
+					break;
+			}
+		}
+
+		if (best == null)
+			return (false);
+
+		final short mask = (short)((short)(
+		    (short)((short)1 << bestBits) - 1) << bestStart);
+		if (!best.setMaskIfAvailable(mask))
+			return (false);
+		buf.allocFromBase(best, (short)(bestStart * best.offsetStep),
+		    mask, size);
+		return (true);
+	}
+//#endif
+
 	/* Called by TransientBuffer#expand */
 	public boolean
 	realloc(final short size, final TransientBuffer buf)
@@ -189,8 +446,12 @@ public class BufferManager {
 		 * We can't possibly fit this in the buffer, even if the
 		 * bitmap is empty.
 		 */
-		if ((short)(offset + size) > bufSize)
+		if ((short)(offset + size) > bufSize) {
+//#if APPLET_TRACE
+			Trace.event(Trace.A_REALLOC_FAIL);
+//#endif
 			return (false);
+		}
 
 		/*
 		 * mask = our current mask (before realloc)
@@ -212,11 +473,18 @@ public class BufferManager {
 		 * buffer's bitmap AND nmask will be just mask (only our old
 		 * existing used bits are set)
 		 */
-		if (buffer.maskAnd(nmask) != mask)
+		if (buffer.maskAnd(nmask) != mask) {
+//#if APPLET_TRACE
+			Trace.event(Trace.A_REALLOC_FAIL);
+//#endif
 			return (false);
+		}
 
 		buffer.setMask(nmask);
 		buf.expandFromBase(nmask, size);
+//#if APPLET_TRACE
+		Trace.event(Trace.A_REALLOC);
+//#endif
 		return (true);
 	}
 }
@@ -0,0 +1,361 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+package net.cooperi.pivapplet;
+
+//#if PIV_COMPRESS_CERTS
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/*
+ * Deflate writes out a gzip file (RFC 1952) of some data compressed with
+ * DEFLATE (RFC 1951). This is what the PIV CertInfo byte (tag 71) means by a
+ * compressed certificate, so hosts already know how to read what we make.
+ *
+ * It's about the simplest encoder that still gets somewhere with DER: one
+ * block of fixed Huffman codes, with LZ77 matches found using a hash table
+ * holding just the last position seen for each hash of 3 bytes (no chains,
+ * no lazy matching). Most of a certificate is keys and signatures, which
+ * nothing will compress, and on the rest this gets close to zlib.
+ *
+ * The caller provides SCRATCH_SIZE bytes of scratch space, for the hash table
+ * and to collect output in: output is written to dst STAGE_SIZE bytes at a
+ * time, so that we aren't writing to EEPROM a byte at a time.
+ */
+public class Deflate {
+	private static final short HASH_SIZE = 256;
+	private static final short STAGE_SIZE = 32;
+	public static final short SCRATCH_SIZE =
+	    (short)(HASH_SIZE * 2 + STAGE_SIZE);
+
+	private static final short MIN_MATCH = 3;
+	private static final short MAX_MATCH = 258;
+
+	/*
+	 * gzip header: magic, CM = 8 (deflate), no flags, no mtime, no extra
+	 * flags, OS = unknown.
+	 */
+	private static final byte[] GZIP_HDR = {
+	    (byte)0x1F, (byte)0x8B, (byte)0x08, (byte)0x00,
+	    (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+	    (byte)0x00, (byte)0xFF
+	};
+
+	/* Base values and extra bits for length codes 257-285 */
+	private static final short[] LEN_BASE = {
+	    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43,
+	    51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+	};
+	private static final byte[] LEN_EXTRA = {
+	    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4,
+	    4, 4, 5, 5, 5, 5, 0
+	};
+
+	/* Base values and extra bits for distance codes 0-29 */
+	private static final short[] DIST_BASE = {
+	    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257,
+	    385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289,
+	    16385, 24577
+	};
+	private static final byte[] DIST_EXTRA = {
+	    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9,
+	    10, 10, 11, 11, 12, 12, 13, 13
+	};
+
+	/*
+	 * CRC-32 of each value of a nibble, as (high short, low short) pairs,
+	 * so we can do it 4 bits at a time without needing int.
+	 */
+	private static final short[] CRC_NIBBLE = {
+	    (short)0x0000, (short)0x0000, (short)0x1DB7, (short)0x1064,
+	    (short)0x3B6E, (short)0x20C8, (short)0x26D9, (short)0x30AC,
+	    (short)0x76DC, (short)0x4190, (short)0x6B6B, (short)0x51F4,
+	    (short)0x4DB2, (short)0x6158, (short)0x5005, (short)0x713C,
+	    (short)0xEDB8, (short)0x8320, (short)0xF00F, (short)0x9344,
+	    (short)0xD6D6, (short)0xA3E8, (short)0xCB61, (short)0xB38C,
+	    (short)0x9B64, (short)0xC2B0, (short)0x86D3, (short)0xD2D4,
+	    (short)0xA00A, (short)0xE278, (short)0xBDBD, (short)0xF21C
+	};
+
+	/* Indexes into st */
+	private static final byte S_BITS = 0;
+	private static final byte S_NBITS = 1;
+	private static final byte S_STAGE = 2;
+	private static final byte S_OUT = 3;
+	private static final byte S_DST_OFF = 4;
+	private static final byte S_DST_MAX = 5;
+	private static final byte S_SCRATCH_OFF = 6;
+	private static final byte S_CRC_HI = 7;
+	private static final byte S_CRC_LO = 8;
+	private static final byte S_MAX = S_CRC_LO;
+
+	/* Indexes into refs */
+	private static final byte R_DST = 0;
+	private static final byte R_SCRATCH = 1;
+
+	private final short[] st;
+	private final Object[] refs;
+
+	public
+	Deflate()
+	{
+		st = JCSystem.makeTransientShortArray((short)(S_MAX + 1),
+		    JCSystem.CLEAR_ON_DESELECT);
+		refs = JCSystem.makeTransientObjectArray((short)(R_SCRATCH + 1),
+		    JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Compresses srcLen bytes at srcOff in src, writing the gzip file to
+	 * dst at dstOff. Returns its length, or -1 if it would have been
+	 * longer than dstMax bytes (in which case some of dst may have been
+	 * written anyway).
+	 */
+	public short
+	compress(final byte[] src, final short srcOff, final short srcLen,
+	    final byte[] dst, final short dstOff, final short dstMax,
+	    final byte[] scratch, final short scratchOff)
+	{
+		final short end = (short)(srcOff + srcLen);
+		short pos = srcOff;
+		short i;
+
+		refs[R_DST] = dst;
+		refs[R_SCRATCH] = scratch;
+		st[S_BITS] = 0;
+		st[S_NBITS] = 0;
+		st[S_STAGE] = 0;
+		st[S_OUT] = 0;
+		st[S_DST_OFF] = dstOff;
+		st[S_DST_MAX] = dstMax;
+		st[S_SCRATCH_OFF] = scratchOff;
+		st[S_CRC_HI] = (short)0xFFFF;
+		st[S_CRC_LO] = (short)0xFFFF;
+
+		/* All hash table entries start out as -1 (nothing there). */
+		Util.arrayFillNonAtomic(scratch, scratchOff,
+		    (short)(HASH_SIZE * 2), (byte)0xFF);
+
+		for (i = 0; i < (short)GZIP_HDR.length; ++i)
+			putByte(GZIP_HDR[i]);
+
+		/* BFINAL = 1, BTYPE = 01 (fixed Huffman codes) */
+		putBits((short)3, (short)3);
+
+		while (pos < end) {
+			if (st[S_OUT] < 0)
+				break;
+
+			short mlen = 0;
+			short dist = 0;
+			if ((short)(end - pos) >= MIN_MATCH) {
+				final short hoff = hashOffset(src, pos);
+				final short cand = Util.getShort(scratch, hoff);
+				Util.setShort(scratch, hoff,
+				    (short)(pos - srcOff));
+				if (cand >= 0) {
+					final short cpos =
+					    (short)(srcOff + cand);
+					mlen = matchLength(src, cpos, pos,
+					    end);
+					dist = (short)(pos - cpos);
+				}
+			}
+
+			if (mlen >= MIN_MATCH) {
+				putLength(mlen);
+				putDistance(dist);
+				crc(src, pos, mlen);
+				/* Remember positions inside the match too. */
+				for (i = 1; i < mlen; ++i) {
+					final short p = (short)(pos + i);
+					if ((short)(end - p) < MIN_MATCH)
+						break;
+					Util.setShort(scratch,
+					    hashOffset(src, p),
+					    (short)(p - srcOff));
+				}
+				pos += mlen;
+			} else {
+				putSymbol((short)(src[pos] & 0x00FF));
+				crc(src, pos, (short)1);
+				++pos;
+			}
+		}
+
+		/* End of block, then pad out to a whole byte. */
+		putSymbol((short)256);
+		if (st[S_NBITS] != 0)
+			putBits((short)0, (short)(8 - st[S_NBITS]));
+
+		/* gzip trailer: CRC-32 and length, both little-endian. */
+		final short crcHi = (short)~st[S_CRC_HI];
+		final short crcLo = (short)~st[S_CRC_LO];
+		putByte((byte)crcLo);
+		putByte((byte)(crcLo >> 8));
+		putByte((byte)crcHi);
+		putByte((byte)(crcHi >> 8));
+		putByte((byte)srcLen);
+		putByte((byte)(srcLen >> 8));
+		putByte((byte)0);
+		putByte((byte)0);
+		flushStage();
+
+		refs[R_DST] = null;
+		refs[R_SCRATCH] = null;
+
+		return (st[S_OUT]);
+	}
+
+	private short
+	hashOffset(final byte[] src, final short pos)
+	{
+		final short h = (short)(
+		    (short)((src[pos] & 0x00FF) << 5) ^
+		    (short)((src[(short)(pos + 1)] & 0x00FF) << 2) ^
+		    (short)(src[(short)(pos + 2)] & 0x00FF));
+		return ((short)(st[S_SCRATCH_OFF] +
+		    (short)((short)(h & (short)(HASH_SIZE - 1)) * 2)));
+	}
+
+	private static short
+	matchLength(final byte[] src, final short cpos, final short pos,
+	    final short end)
+	{
+		short max = (short)(end - pos);
+		if (max > MAX_MATCH)
+			max = MAX_MATCH;
+		short n = 0;
+		while (n < max &&
+		    src[(short)(cpos + n)] == src[(short)(pos + n)]) {
+			++n;
+		}
+		return (n);
+	}
+
+	private void
+	crc(final byte[] src, short pos, short len)
+	{
+		short hi = st[S_CRC_HI];
+		short lo = st[S_CRC_LO];
+		for (; len > 0; --len, ++pos) {
+			lo ^= (short)(src[pos] & 0x00FF);
+			for (byte k = 0; k < 2; ++k) {
+				final short idx =
+				    (short)((short)(lo & 0x0F) * 2);
+				lo = (short)((short)((lo >> 4) & 0x0FFF) |
+				    (short)((short)(hi & 0x0F) << 12));
+				hi = (short)((hi >> 4) & 0x0FFF);
+				hi ^= CRC_NIBBLE[idx];
+				lo ^= CRC_NIBBLE[(short)(idx + 1)];
+			}
+		}
+		st[S_CRC_HI] = hi;
+		st[S_CRC_LO] = lo;
+	}
+
+	/* Writes a literal/length symbol using the fixed Huffman codes. */
+	private void
+	putSymbol(final short sym)
+	{
+		if (sym < 144)
+			putCode((short)(0x30 + sym), (short)8);
+		else if (sym < 256)
+			putCode((short)(0x190 + sym - 144), (short)9);
+		else if (sym < 280)
+			putCode((short)(sym - 256), (short)7);
+		else
+			putCode((short)(0xC0 + sym - 280), (short)8);
+	}
+
+	private void
+	putLength(final short len)
+	{
+		short i = (short)(LEN_BASE.length - 1);
+		while (LEN_BASE[i] > len)
+			--i;
+		putSymbol((short)(257 + i));
+		if (LEN_EXTRA[i] != 0)
+			putBits((short)(len - LEN_BASE[i]), LEN_EXTRA[i]);
+	}
+
+	private void
+	putDistance(final short dist)
+	{
+		short i = (short)(DIST_BASE.length - 1);
+		while (DIST_BASE[i] > dist)
+			--i;
+		putCode(i, (short)5);
+		if (DIST_EXTRA[i] != 0)
+			putBits((short)(dist - DIST_BASE[i]), DIST_EXTRA[i]);
+	}
+
+	/* Huffman codes are packed starting from their most significant bit. */
+	private void
+	putCode(short code, final short n)
+	{
+		short rev = 0;
+		for (short i = 0; i < n; ++i) {
+			rev = (short)((short)(rev << 1) | (short)(code & 1));
+			code = (short)(code >> 1);
+		}
+		putBits(rev, n);
+	}
+
+	/* Everything else is packed starting from its least significant bit. */
+	private void
+	putBits(short val, short n)
+	{
+		while (n > 0) {
+			short nb = st[S_NBITS];
+			short take = (short)(8 - nb);
+			if (take > n)
+				take = n;
+			final short mask = (short)((short)(1 << take) - 1);
+			st[S_BITS] |= (short)((short)(val & mask) << nb);
+			val = (short)(val >> take);
+			n -= take;
+			nb += take;
+			if (nb == 8) {
+				putByte((byte)st[S_BITS]);
+				st[S_BITS] = 0;
+				nb = 0;
+			}
+			st[S_NBITS] = nb;
+		}
+	}
+
+	private void
+	putByte(final byte b)
+	{
+		final byte[] scratch = (byte[])refs[R_SCRATCH];
+		scratch[(short)(st[S_SCRATCH_OFF] + HASH_SIZE * 2 +
+		    st[S_STAGE])] = b;
+		if (++st[S_STAGE] == STAGE_SIZE)
+			flushStage();
+	}
+
+	private void
+	flushStage()
+	{
+		final short n = st[S_STAGE];
+		final short out = st[S_OUT];
+		st[S_STAGE] = 0;
+		if (out < 0)
+			return;
+		if ((short)(out + n) > st[S_DST_MAX]) {
+			st[S_OUT] = -1;
+			return;
+		}
+		Util.arrayCopyNonAtomic((byte[])refs[R_SCRATCH],
+		    (short)(st[S_SCRATCH_OFF] + HASH_SIZE * 2),
+		    (byte[])refs[R_DST], (short)(st[S_DST_OFF] + out), n);
+		st[S_OUT] = (short)(out + n);
+	}
+}
+//#endif
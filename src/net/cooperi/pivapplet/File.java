@@ -8,14 +8,158 @@
 
 package net.cooperi.pivapplet;
 
+import javacard.framework.JCSystem;
+
 public class File {
 	public static final byte P_ALWAYS = (byte)0;
 	public static final byte P_PIN = (byte)1;
 	public static final byte P_NEVER = (byte)2;
 
+	/*
+	 * What we size the certificate slots for up front. Almost every
+	 * certificate anyone puts on a PIV card (even RSA-2048 ones with a
+	 * few extensions) fits in this.
+	 */
+	public static final short CAP_CERT = 2048;
+
 	public byte[] data;
+	public short off;
 	public short len;
+	public byte[] spare;
+	public short spareOff;
+//#if PIV_OBJECT_STORE
+	private ObjectStore store;
+//#endif
 
 	public byte contact = P_ALWAYS;
 	public byte contactless = P_ALWAYS;
+
+	public
+	File()
+	{
+	}
+
+	public
+	File(final short capacity)
+	{
+		data = new byte[capacity];
+	}
+
+//#if PIV_OBJECT_STORE
+	/*
+	 * A File whose contents live in an ObjectStore: data and spare are
+	 * always the store's heap (once written), and off and spareOff say
+	 * where in it.
+	 */
+	public
+	File(final ObjectStore store)
+	{
+		this.store = store;
+		store.add(this);
+	}
+//#endif
+
+	/*
+	 * Rounds a length up to the size of array we would store it in.
+	 *
+	 * We only ever make data bigger (the card may never give the old
+	 * array back, and asking it to is slow), so rounding up to a few
+	 * fixed classes means an object which changes size a bit each time
+	 * it's written (e.g. a re-issued certificate) doesn't end up with a
+	 * new array for every write.
+	 */
+	public static short
+	capacityFor(final short len)
+	{
+		if (len <= (short)128)
+			return ((short)128);
+		if (len <= (short)512)
+			return ((short)512);
+		if (len <= (short)1024)
+			return ((short)1024);
+		if (len <= CAP_CERT)
+			return (CAP_CERT);
+		/* Past that, round up to the next 1k (if we can) */
+		if (len > (short)0x7C00)
+			return (len);
+		return ((short)((short)(len + 0x3FF) & (short)0x7C00));
+	}
+
+	/*
+	 * Writing a File is done in two steps, so that it's never left
+	 * half-written (e.g. if the card is pulled out part way through a
+	 * long chained PUT DATA):
+	 *
+	 *  - prepare(len) makes sure spare can hold len bytes at spareOff
+	 *  - the new contents are written into spare at spareOff
+	 *    (non-atomically, at full speed: nobody reads from there)
+	 *  - commit(len) swaps data and spare over, and sets len, all in one
+	 *    transaction
+	 *
+	 * The old contents stay in data (and readable) right up until the
+	 * commit. The spare array is only made the first time the File is
+	 * written, and after that the two arrays just trade places.
+	 *
+	 * prepare() returns true if there was a spare array already which was
+	 * too small, and has now been thrown away.
+	 *
+	 * For a File in an ObjectStore, prepare() instead finds room for the
+	 * new contents in the store (so it never throws anything away), and
+	 * the old contents' space is left for ObjectStore#compact().
+	 */
+	public boolean
+	prepare(final short len)
+	{
+//#if PIV_OBJECT_STORE
+		if (store != null) {
+			spareOff = store.alloc(len);
+			spare = store.heap;
+			return (false);
+		}
+//#endif
+		spareOff = 0;
+		if (spare != null && (short)spare.length >= len)
+			return (false);
+		final boolean replaced = (spare != null);
+		short cap = capacityFor(len);
+		/* Keep both arrays the same size if we can. */
+		if (data != null && (short)data.length > cap)
+			cap = (short)data.length;
+		spare = new byte[cap];
+		return (replaced);
+	}
+
+	/*
+	 * Finds room for up to len bytes at spareOff in spare, the same way
+	 * as prepare(). For a File in an ObjectStore, though, the space isn't
+	 * handed out yet: it can be written to as scratch space, and then a
+	 * prepare() for no more than len bytes straight afterwards gets the
+	 * same space for keeps. (For any other File, this is just prepare().)
+	 */
+	public boolean
+	scratch(final short len)
+	{
+//#if PIV_OBJECT_STORE
+		if (store != null) {
+			spareOff = store.peek(len);
+			spare = store.heap;
+			return (false);
+		}
+//#endif
+		return (prepare(len));
+	}
+
+	public void
+	commit(final short newLen)
+	{
+		final byte[] old = data;
+		final short oldOff = off;
+		JCSystem.beginTransaction();
+		data = spare;
+		off = spareOff;
+		spare = old;
+		spareOff = oldOff;
+		len = newLen;
+		JCSystem.commitTransaction();
+	}
 }
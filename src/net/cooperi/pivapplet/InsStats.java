@@ -0,0 +1,159 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+package net.cooperi.pivapplet;
+
+//#if APPLET_INSTRUMENT
+import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+
+/*
+ * InsStats keeps per-instruction counters for APPLET_INSTRUMENT builds: how
+ * many times each INS was called, how its status words came out, how many
+ * of the calls were part of a command chain, and how much work the SGLists
+ * did while processing it.
+ *
+ * Java Card gives us no clock to time commands with, so "cost" is measured
+ * by the number of SGList segments touched and the number of bytes copied
+ * into or out of them. The byte counts go into a coarse histogram (one
+ * bucket per power of 4 from 256 up) rather than a sum, so that a handful
+ * of big certificate writes don't saturate the counters.
+ *
+ * Everything is kept in CLEAR_ON_RESET memory: the counters survive
+ * re-selection but not a card reset, and never cause EEPROM writes.
+ */
+public class InsStats {
+	public static final byte F_CALLS = 0;
+	public static final byte F_SW_OK = 1;
+	public static final byte F_SW_MORE = 2;
+	public static final byte F_SW_ERR = 3;
+	public static final byte F_CHAINED = 4;
+	public static final byte F_SEGS = 5;
+	/* Bytes copied: < 256, < 1024, < 4096, >= 4096 */
+	public static final byte F_COPY_0 = 6;
+	public static final byte F_COPY_1 = 7;
+	public static final byte F_COPY_2 = 8;
+	public static final byte F_COPY_3 = 9;
+	public static final byte F_MAX = F_COPY_3;
+
+	private static final byte CUR_SEGS = 0;
+	private static final byte CUR_BYTES = 1;
+
+	/*
+	 * The current command's running totals. Static so that SGList can
+	 * report to us without needing a reference.
+	 */
+	private static short[] cur = null;
+
+	private final byte[] insList;
+	private final short[] counts;
+
+	/*
+	 * insList is the set of INS bytes we keep individual counters for;
+	 * anything else is lumped together in one extra entry at the end.
+	 */
+	public
+	InsStats(final byte[] insList)
+	{
+		this.insList = insList;
+		counts = JCSystem.makeTransientShortArray(
+		    (short)((short)(insList.length + 1) * (F_MAX + 1)),
+		    JCSystem.CLEAR_ON_RESET);
+		cur = JCSystem.makeTransientShortArray((short)(CUR_BYTES + 1),
+		    JCSystem.CLEAR_ON_RESET);
+	}
+
+	public static void
+	copied(final short len)
+	{
+		if (cur == null)
+			return;
+		if (cur[CUR_SEGS] != (short)0x7FFF)
+			cur[CUR_SEGS]++;
+		final short v = (short)(cur[CUR_BYTES] + len);
+		cur[CUR_BYTES] = (v < cur[CUR_BYTES]) ? (short)0x7FFF : v;
+	}
+
+	public void
+	begin()
+	{
+		cur[CUR_SEGS] = 0;
+		cur[CUR_BYTES] = 0;
+	}
+
+	public void
+	end(final byte ins, final boolean chained, final short sw)
+	{
+		short idx;
+		for (idx = 0; idx < (short)insList.length; ++idx) {
+			if (insList[idx] == ins)
+				break;
+		}
+		final short base = (short)(idx * (F_MAX + 1));
+
+		incr((short)(base + F_CALLS), (short)1);
+		if (sw == ISO7816.SW_NO_ERROR)
+			incr((short)(base + F_SW_OK), (short)1);
+		else if ((short)(sw & (short)0xFF00) ==
+		    ISO7816.SW_BYTES_REMAINING_00)
+			incr((short)(base + F_SW_MORE), (short)1);
+		else
+			incr((short)(base + F_SW_ERR), (short)1);
+		if (chained)
+			incr((short)(base + F_CHAINED), (short)1);
+		incr((short)(base + F_SEGS), cur[CUR_SEGS]);
+
+		final short bytes = cur[CUR_BYTES];
+		final byte bucket;
+		if (bytes >= 4096)
+			bucket = F_COPY_3;
+		else if (bytes >= 1024)
+			bucket = F_COPY_2;
+		else if (bytes >= 256)
+			bucket = F_COPY_1;
+		else
+			bucket = F_COPY_0;
+		incr((short)(base + bucket), (short)1);
+	}
+
+	private void
+	incr(final short idx, final short by)
+	{
+		final short v = (short)(counts[idx] + by);
+		if (v < counts[idx])
+			counts[idx] = (short)0x7FFF;
+		else
+			counts[idx] = v;
+	}
+
+	/*
+	 * Writes one "80" TLV per INS that has been called at least once:
+	 * the INS byte (00 for the catch-all entry), followed by the
+	 * F_* counters in order as shorts. New counters only get added on
+	 * the end.
+	 */
+	public void
+	write(final TlvWriter wtlv)
+	{
+		final short entries = (short)(insList.length + 1);
+		for (short idx = 0; idx < entries; ++idx) {
+			final short base = (short)(idx * (F_MAX + 1));
+			if (counts[(short)(base + F_CALLS)] == 0)
+				continue;
+			wtlv.writeTagRealLen((byte)0x80,
+			    (short)(1 + (F_MAX + 1) * 2));
+			if (idx < (short)insList.length)
+				wtlv.writeByte(insList[idx]);
+			else
+				wtlv.writeByte((byte)0x00);
+			for (short f = 0; f <= F_MAX; ++f)
+				wtlv.writeShort(counts[(short)(base + f)]);
+		}
+	}
+}
+//#endif
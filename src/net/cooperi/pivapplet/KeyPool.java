@@ -0,0 +1,131 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+package net.cooperi.pivapplet;
+
+//#if PIV_KEY_POOL
+import javacard.security.KeyPair;
+
+/*
+ * KeyPool holds key pairs which have been generated ahead of time (with the
+ * vendor INS_PREPARE_KEYS command), so that GENERATE ASYMMETRIC can hand one
+ * straight to a slot instead of making the host wait for genKeyPair().
+ *
+ * Each entry has a KeyPair object, the algorithm it was built for, and
+ * whether it holds a fresh key which is ready to be used. Entries which
+ * aren't ready still keep their KeyPair objects around so they can be
+ * re-generated in place later: we can't count on the card ever giving the
+ * memory back if we drop them.
+ *
+ * The KeyPool itself knows nothing about algorithms; PivApplet builds and
+ * generates the KeyPairs and just tells us what it put in.
+ */
+public class KeyPool {
+	private final KeyPair[] pairs;
+	private final byte[] algs;
+	private final boolean[] ready;
+
+	public
+	KeyPool(final short size)
+	{
+		pairs = new KeyPair[size];
+		algs = new byte[size];
+		ready = new boolean[size];
+		for (short i = 0; i < size; ++i)
+			algs[i] = (byte)-1;
+	}
+
+	public short
+	count(final byte alg)
+	{
+		short n = 0;
+		for (short i = 0; i < (short)pairs.length; ++i) {
+			if (ready[i] && algs[i] == alg)
+				++n;
+		}
+		return (n);
+	}
+
+	/*
+	 * Returns the index of an entry which can be filled with a new key
+	 * pair for alg, or -1 if there isn't one. Entries with a spare
+	 * KeyPair for the same algorithm are preferred, then empty ones.
+	 * An entry holding a KeyPair for some other algorithm is never
+	 * used: we'd have to drop that KeyPair to build a new one.
+	 */
+	public short
+	spare(final byte alg)
+	{
+		short empty = -1;
+		for (short i = 0; i < (short)pairs.length; ++i) {
+			if (ready[i])
+				continue;
+			if (algs[i] == alg)
+				return (i);
+			if (pairs[i] == null && empty == -1)
+				empty = i;
+		}
+		return (empty);
+	}
+
+	public KeyPair
+	pair(final short idx)
+	{
+		return (pairs[idx]);
+	}
+
+	public byte
+	alg(final short idx)
+	{
+		return (algs[idx]);
+	}
+
+	public void
+	fill(final short idx, final byte alg, final KeyPair kp)
+	{
+		ready[idx] = false;
+		pairs[idx] = kp;
+		algs[idx] = alg;
+		ready[idx] = true;
+	}
+
+	/*
+	 * Takes a ready key pair for alg out of the pool, leaving old (a
+	 * KeyPair built for algorithm oldAlg, or null) in its place as a
+	 * spare. Returns null if there are none ready.
+	 *
+	 * The caller should do this inside a transaction along with
+	 * replacing the key it got old from.
+	 */
+	public KeyPair
+	take(final byte alg, final KeyPair old, final byte oldAlg)
+	{
+		for (short i = 0; i < (short)pairs.length; ++i) {
+			if (!ready[i] || algs[i] != alg)
+				continue;
+			final KeyPair kp = pairs[i];
+			ready[i] = false;
+			pairs[i] = old;
+			algs[i] = (old == null) ? (byte)-1 : oldAlg;
+			return (kp);
+		}
+		return (null);
+	}
+
+	/* Throws away every ready key pair. */
+	public void
+	clear()
+	{
+		for (short i = 0; i < (short)pairs.length; ++i) {
+			ready[i] = false;
+			if (pairs[i] != null)
+				pairs[i].getPrivate().clearKey();
+		}
+	}
+}
+//#endif
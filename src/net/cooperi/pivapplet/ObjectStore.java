@@ -0,0 +1,185 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+package net.cooperi.pivapplet;
+
+//#if PIV_OBJECT_STORE
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/*
+ * ObjectStore keeps the contents of every PIV data object in one byte array
+ * (the heap) which is allocated once, at install time, instead of giving each
+ * File its own arrays.
+ *
+ * The Files themselves act as the directory: each one registered with the
+ * store holds the offset and length of its contents in the heap (and its
+ * access policy, as usual). A File with len == 0 owns no space.
+ *
+ * Space is handed out from the top of the heap: writing a new version of an
+ * object always puts it in fresh space above everything else (see
+ * File#prepare), and the space the old version was in is dead until the
+ * heap is compacted. compact() slides every live object down to the bottom
+ * of the heap, in order, and is run by the vendor INS_STORE command or
+ * whenever an alloc() would otherwise not fit.
+ *
+ * Every step of compact() is safe to interrupt: an object is only ever
+ * copied into space nobody is using, and then its offset (a single short)
+ * is updated to point at the copy.
+ */
+public class ObjectStore {
+	public final byte[] heap;
+
+	private final File[] entries;
+	private short count = 0;
+
+	/* Everything at or above top is free. */
+	private short top = 0;
+
+	public
+	ObjectStore(final short size, final short maxEntries)
+	{
+		heap = new byte[size];
+		entries = new File[maxEntries];
+	}
+
+	public void
+	add(final File file)
+	{
+		if (count >= (short)entries.length) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			return;
+		}
+		entries[count++] = file;
+	}
+
+	/*
+	 * Finds len bytes of free space for a new version of an object and
+	 * returns its offset in the heap. The space is only in use once the
+	 * File it was for has been committed to it: nothing else may call
+	 * alloc() or compact() in between.
+	 */
+	public short
+	alloc(final short len)
+	{
+		final short off = peek(len);
+		top += len;
+		return (off);
+	}
+
+	/*
+	 * Makes sure there are len bytes of free space (compacting if need
+	 * be) and returns their offset, like alloc(), but without handing
+	 * them out: they can be used as scratch space until the next alloc()
+	 * or compact(). An alloc() of no more than len bytes straight after
+	 * returns the same offset.
+	 */
+	public short
+	peek(final short len)
+	{
+		if ((short)(heap.length - top) < len)
+			compact();
+		if ((short)(heap.length - top) < len) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			return ((short)-1);
+		}
+		return (top);
+	}
+
+	/* Number of bytes held by live objects. */
+	public short
+	used()
+	{
+		short n = 0;
+		for (short i = 0; i < count; ++i)
+			n += entries[i].len;
+		return (n);
+	}
+
+	/* Number of bytes which compact() could get back. */
+	public short
+	dead()
+	{
+		return ((short)(top - used()));
+	}
+
+	public short
+	free()
+	{
+		return ((short)(heap.length - top));
+	}
+
+	public void
+	compact()
+	{
+		short pos = 0;
+
+		while (true) {
+			/* Find the live object lowest down at or after pos. */
+			File next = null;
+			for (short i = 0; i < count; ++i) {
+				final File f = entries[i];
+				if (f.len == 0 || f.data != heap || f.off < pos)
+					continue;
+				if (next == null || f.off < next.off)
+					next = f;
+			}
+			if (next == null)
+				break;
+			if (next.off != pos && !move(next, pos))
+				return;
+			pos += next.len;
+		}
+		top = pos;
+	}
+
+	/*
+	 * Moves a File's contents down to offset to. If the old and new places
+	 * overlap, the contents go via the free space at the top of the heap
+	 * (or, if there isn't enough, a transaction). Returns false if it
+	 * couldn't be moved at all.
+	 */
+	private boolean
+	move(final File f, final short to)
+	{
+		final short len = f.len;
+
+		if ((short)(f.off - to) >= len) {
+			Util.arrayCopyNonAtomic(heap, f.off, heap, to, len);
+			f.off = to;
+			return (true);
+		}
+
+		if ((short)(heap.length - top) >= len) {
+			/*
+			 * Move top up over the copy first, so if we're
+			 * interrupted it can't be handed out by alloc().
+			 */
+			final short tmp = top;
+			top += len;
+			Util.arrayCopyNonAtomic(heap, f.off, heap, tmp, len);
+			f.off = tmp;
+			Util.arrayCopyNonAtomic(heap, tmp, heap, to, len);
+			f.off = to;
+			top = tmp;
+			return (true);
+		}
+
+		/* Leave some room for the framework's own bookkeeping. */
+		if (JCSystem.getUnusedCommitCapacity() < (short)(len + 64))
+			return (false);
+		JCSystem.beginTransaction();
+		Util.arrayCopy(heap, f.off, heap, to, len);
+		f.off = to;
+		JCSystem.commitTransaction();
+		return (true);
+	}
+}
+//#endif
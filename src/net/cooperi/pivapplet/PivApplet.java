@@ -10,6 +10,7 @@ package net.cooperi.pivapplet;
 
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -72,6 +73,33 @@ public class PivApplet extends Applet
 //#if APPLET_LOW_TRANSIENT
 	    'L',
 //#endif
+//#if APPLET_BESTFIT_ALLOC
+	    'B',
+//#endif
+//#if APPLET_INSTRUMENT
+	    'I',
+//#endif
+//#if APPLET_TRACE
+	    'T',
+//#endif
+//#if PIV_KEY_POOL
+	    'K',
+//#endif
+//#if APPLET_LAZY_CRYPTO
+	    'z',
+//#endif
+//#if APPLET_ARENA
+	    'W',
+//#endif
+//#if PIV_OBJECT_STORE
+	    'O',
+//#endif
+//#if PIV_COMPRESS_CERTS
+	    'C',
+//#endif
+//#if APPLET_RESUME_RESPONSE
+	    'G',
+//#endif
 //#if APPLET_USE_RESET_MEM
 	    'r',
 //#endif
@@ -105,6 +133,18 @@ public class PivApplet extends Applet
 	    '1', '2', '3', '4', '5', '6', '7', '8'
 	};
 
+	/*
+	 * INS_GET_MDATA response for the PIN and PUK. Only the bytes at the
+	 * PIN_META_* offsets vary, and get patched in on each request.
+	 */
+	private static final byte[] PIN_META_TMPL = {
+	    (byte)0x05, (byte)0x01, (byte)0x00,
+	    (byte)0x06, (byte)0x02, (byte)0x00, (byte)0x00
+	};
+	private static final short PIN_META_DEFAULT = 2;
+	private static final short PIN_META_TOTAL = 5;
+	private static final short PIN_META_REMAINING = 6;
+
 	private static final byte[] CARD_ID_FIXED = {
 	    /* GSC-RID: GSC-IS data model */
 	    (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x01, (byte)0x16,
@@ -140,6 +180,29 @@ public class PivApplet extends Applet
 
 	/* Our own private extensions. */
 	private static final byte INS_SG_DEBUG = (byte)0xe0;
+//#if PIV_KEY_POOL
+	private static final byte INS_PREPARE_KEYS = (byte)0xe1;
+
+	/* Number of pre-generated key pairs we can hold on to. */
+	private static final short KEY_POOL_SIZE = (short)2;
+//#endif
+//#if PIV_OBJECT_STORE
+	private static final byte INS_STORE = (byte)0xe2;
+
+	/* Size of the ObjectStore heap all the data objects share. */
+	private static final short STORE_SIZE = (short)12288;
+//#endif
+
+//#if APPLET_INSTRUMENT
+	/* The INS values InsStats keeps individual counters for. */
+	private static final byte[] INSTRUMENTED_INS = {
+	    INS_VERIFY, INS_CHANGE_PIN, INS_RESET_PIN, INS_GEN_AUTH,
+	    INS_GET_DATA, INS_PUT_DATA, INS_GEN_ASYM, INS_GET_RESPONSE,
+	    INS_SET_MGMT, INS_IMPORT_ASYM, INS_GET_VER, INS_RESET,
+	    INS_SET_PIN_RETRIES, INS_ATTEST, INS_GET_SERIAL, INS_GET_MDATA,
+	    INS_SG_DEBUG
+	};
+//#endif
 
 	/* ASSERT: tag.end() was called but tag has bytes left. */
 	protected static final short SW_TAG_END_ASSERT = (short)0x6F60;
@@ -156,15 +219,66 @@ public class PivApplet extends Applet
 
 	private BufferManager bufmgr = null;
 	private SGList incoming = null;
+//#if APPLET_RESUME_RESPONSE
+	/*
+	 * Two outgoing SGLists: the one for the current command's response
+	 * (see outgoing()), and one for a response which was part way through
+	 * being sent (with GET RESPONSE) when another command came along (see
+	 * parkResponse()). respCur[0] is the index of the current one, so
+	 * trading them over doesn't have to write to EEPROM.
+	 */
+	private SGList[] responses = null;
+	private byte[] respCur = null;
+	/*
+	 * What the responses in outgoing() and parked() are for: the INS of
+	 * the command which made them in the high byte, and its P1 (or for
+	 * GET DATA, the last byte of the tag) in the low byte.
+	 */
+	private static final byte RK_OUTGOING = 0;
+	private static final byte RK_PARKED = 1;
+	private short[] respKeys = null;
+/*#else
 	private SGList outgoing = null;
+#endif*/
 	private APDUStream apduStream = null;
+//#if APPLET_INSTRUMENT
+	private InsStats insStats = null;
+//#endif
+//#if PIV_KEY_POOL
+	private KeyPool keyPool = null;
+//#endif
+//#if PIV_OBJECT_STORE
+	private ObjectStore store = null;
+//#endif
+//#if PIV_COMPRESS_CERTS
+	private Deflate deflate = null;
+//#endif
 	private TransientBuffer tempBuf = null;
 	private TransientBuffer outBuf = null;
 	private short outgoingLe = 0;
 
+	/* State for a streaming PUT DATA, see streamPutData(). */
+	private static final byte PUT_LEN = 0;
+	private static final byte PUT_OFF = 1;
+	private static final byte PUT_GC = 2;
+	private Object[] putFile = null;
+	private short[] putState = null;
+
+	/*
+	 * Bit (idx % 16) of alwaysMask[idx / 16] is set if slots[idx] is "PIN
+	 * always" and unlocked. See lockPINAlwaysSlots().
+	 */
+	private short[] alwaysMask = null;
+
+	private byte[] selectResp = null;
+	private byte[] pinMeta = null;
+	private short pinMetaOff = 0;
+
 	private byte[] challenge = null;
+	private short challengeOff = 0;
 	private boolean[] chalValid = null;
 	private byte[] iv = null;
+	private short ivOff = 0;
 	private byte[] certSerial = null;
 
 	private byte[] guid = null;
@@ -187,14 +301,18 @@ public class PivApplet extends Applet
 	private RandomData randData = null;
 	private Cipher tripleDes = null;
 	private Cipher aes = null;
-	private Cipher rsaPkcs1 = null;
-	private Signature ecdsaSha = null;
-	private Signature ecdsaSha256 = null;
-	private Signature ecdsaSha384 = null;
-	private Signature rsaSha = null;
-	private Signature rsaSha256 = null;
-	private KeyAgreement ecdh = null;
-	private KeyAgreement ecdhSha = null;
+
+	/*
+	 * Cipher, Signature and KeyAgreement instances for the asymmetric
+	 * algorithms, indexed by ENG_*. Only ever get at these through
+	 * engine(), and use hasEngine() to find out whether the card has one
+	 * at all. See probeEngine().
+	 */
+	private Object[] engines = null;
+	/* Bit (1 << ENG_*) is set for each engine the card can give us. */
+	private short engineAvail = 0;
+	/* Which ALG_EC_SVDP_* the ENG_ECDH engine is. */
+	private byte ecdhAlg = 0;
 
 	private static final byte MAX_SLOTS = (byte)17;
 
@@ -223,11 +341,26 @@ public class PivApplet extends Applet
 	private static final byte PIV_ALG_ECCP256 = (byte)0x11;
 	private static final byte PIV_ALG_ECCP384 = (byte)0x14;
 
+	/*
+	 * Longest INS_GET_MDATA response (see initSlotMetadata): tags 01, 02
+	 * and 03, then 04 { 81 <modulus> 82 <exponent> } for RSA-2048 (with
+	 * an exponent of up to 4 bytes), or 04 { 86 <point> } for P-384.
+	 */
+//#if PIV_SUPPORT_RSA
+	private static final short META_MAX_LEN = (short)280;
+/*#else
+	private static final short META_MAX_LEN = (short)113;
+#endif*/
+
 	private static final byte GA_TAG_WITNESS = (byte)0x80;
 	private static final byte GA_TAG_CHALLENGE = (byte)0x81;
 	private static final byte GA_TAG_RESPONSE = (byte)0x82;
 	private static final byte GA_TAG_EXP = (byte)0x85;
 
+	/* Batched ECDSA: room left for the 7C header, and max challenges. */
+	private static final short GA_BATCH_HDR = (short)4;
+	private static final short GA_BATCH_MAX = (short)64;
+
 	private static final byte TAG_CERT_9E = (byte)0x01;
 	private static final byte TAG_CHUID = (byte)0x02;
 	private static final byte TAG_FINGERPRINTS = (byte)0x03;
@@ -248,13 +381,29 @@ public class PivApplet extends Applet
 	private static final byte TAG_YK_PIVMAN = (byte)0x00;
 	private static final byte TAG_YK_ATTEST = (byte)0x01;
 	private static final byte YK_TAG_MAX = TAG_YK_ATTEST;
+//#if APPLET_INSTRUMENT
+	/* 5FFF10: InsStats counters, read-only (see sendInsStats) */
+	private static final byte TAG_YK_INSTRUMENT = (byte)0x10;
+//#endif
 	private File[] ykFiles = null;
+	/* The encoded discovery object (tag 7E), see initDISCOVERY() */
+	private File discovery = null;
 
 	private static final byte ALG_EC_SVDP_DH_PLAIN = (byte)3;
 	private static final byte ALG_EC_SVDP_DHC_PLAIN = (byte)4;
 	private static final byte ALG_EC_SVDP_DH_PLAIN_XY = (byte)6;
 	private static final byte ALG_RSA_SHA_256_PKCS1 = (byte)40;
 
+	private static final byte ENG_RSA_NOPAD = 0;
+	private static final byte ENG_RSA_SHA = 1;
+	private static final byte ENG_RSA_SHA256 = 2;
+	private static final byte ENG_ECDH = 3;
+	private static final byte ENG_ECDH_SHA = 4;
+	private static final byte ENG_ECDSA_SHA = 5;
+	private static final byte ENG_ECDSA_SHA256 = 6;
+	private static final byte ENG_ECDSA_SHA384 = 7;
+	private static final byte ENG_MAX = ENG_ECDSA_SHA384;
+
 	public static void
 	install(byte[] info, short off, byte len)
 	{
@@ -280,99 +429,69 @@ public class PivApplet extends Applet
 		    false);
 //#endif
 
-//#if PIV_SUPPORT_RSA
-		rsaPkcs1 = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, useResetMem);
+		engines = new Object[ENG_MAX + 1];
 
+//#if PIV_SUPPORT_RSA
+		probeEngine(ENG_RSA_NOPAD);
 //#if YKPIV_ATTESTATION
-		try {
-			rsaSha = Signature.getInstance(
-			    Signature.ALG_RSA_SHA_PKCS1, useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
-		try {
-			rsaSha256 = Signature.getInstance(
-			    ALG_RSA_SHA_256_PKCS1, useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
+		probeEngine(ENG_RSA_SHA);
+		probeEngine(ENG_RSA_SHA256);
 //#endif
 //#endif
 
 //#if PIV_SUPPORT_EC
-		try {
-			ecdh = KeyAgreement.getInstance(ALG_EC_SVDP_DH_PLAIN,
-			    useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
-
-		if (ecdh == null) {
-			try {
-				ecdh = KeyAgreement.getInstance(
-				    ALG_EC_SVDP_DHC_PLAIN, useResetMem);
-			} catch (CryptoException ex) {
-				if (ex.getReason() !=
-				    CryptoException.NO_SUCH_ALGORITHM)
-					throw (ex);
+		ecdhAlg = ALG_EC_SVDP_DH_PLAIN;
+		if (!probeEngine(ENG_ECDH)) {
+			ecdhAlg = ALG_EC_SVDP_DHC_PLAIN;
+			if (!probeEngine(ENG_ECDH)) {
+				ecdhAlg = ALG_EC_SVDP_DH_PLAIN_XY;
+				if (!probeEngine(ENG_ECDH))
+					probeEngine(ENG_ECDH_SHA);
 			}
 		}
 
-		if (ecdh == null) {
-			try {
-				ecdh = KeyAgreement.getInstance(
-				    ALG_EC_SVDP_DH_PLAIN_XY, useResetMem);
-			} catch (CryptoException ex) {
-				if (ex.getReason() !=
-				    CryptoException.NO_SUCH_ALGORITHM)
-					throw (ex);
-			}
-		}
+		probeEngine(ENG_ECDSA_SHA);
+		probeEngine(ENG_ECDSA_SHA256);
+//#if PIV_SUPPORT_ECCP384
+		probeEngine(ENG_ECDSA_SHA384);
+//#endif
+//#endif
 
-		if (ecdh == null) {
+		bufmgr = new BufferManager();
+//#if APPLET_LAZY_CRYPTO
+		/* Get rid of the engines probeEngine() made and let go of. */
+		if (JCSystem.isObjectDeletionSupported()) {
 			try {
-				ecdhSha = KeyAgreement.getInstance(
-				    KeyAgreement.ALG_EC_SVDP_DH, useResetMem);
-			} catch (CryptoException ex) {
-				if (ex.getReason() !=
-				    CryptoException.NO_SUCH_ALGORITHM)
-					throw (ex);
+				JCSystem.requestObjectDeletion();
+			} catch (Exception e) {
+				bufmgr.gcBlewUp = true;
 			}
 		}
-
-		try {
-			ecdsaSha = Signature.getInstance(
-			    Signature.ALG_ECDSA_SHA, useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
-		try {
-			ecdsaSha256 = Signature.getInstance(
-			    ECParams.ALG_ECDSA_SHA_256, useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
-//#if PIV_SUPPORT_ECCP384
-		try {
-			ecdsaSha384 = Signature.getInstance(
-			    ECParams.ALG_ECDSA_SHA_384, useResetMem);
-		} catch (CryptoException ex) {
-			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
-				throw (ex);
-		}
-//#endif
 //#endif
 
+/*#if APPLET_ARENA
+		challenge = bufmgr.arena();
+		challengeOff = bufmgr.carve((short)16);
+		iv = bufmgr.arena();
+		ivOff = bufmgr.carve((short)16);
+		pinMeta = bufmgr.arena();
+		pinMetaOff = bufmgr.carve((short)PIN_META_TMPL.length);
+#else*/
 		challenge = JCSystem.makeTransientByteArray((short)16,
 		    JCSystem.CLEAR_ON_DESELECT);
+		iv = JCSystem.makeTransientByteArray((short)16,
+		    JCSystem.CLEAR_ON_DESELECT);
+		pinMeta = JCSystem.makeTransientByteArray(
+		    (short)PIN_META_TMPL.length, JCSystem.CLEAR_ON_DESELECT);
+//#endif
 		chalValid = JCSystem.makeTransientBooleanArray((short)1,
 		    JCSystem.CLEAR_ON_DESELECT);
-		iv = JCSystem.makeTransientByteArray((short)16,
+		putFile = JCSystem.makeTransientObjectArray((short)1,
+		    JCSystem.CLEAR_ON_DESELECT);
+		putState = JCSystem.makeTransientShortArray((short)(PUT_GC + 1),
+		    JCSystem.CLEAR_ON_DESELECT);
+		alwaysMask = JCSystem.makeTransientShortArray(
+		    (short)((short)(MAX_SLOTS + 15) / 16),
 		    JCSystem.CLEAR_ON_DESELECT);
 
 		guid = new byte[16];
@@ -402,11 +521,33 @@ public class PivApplet extends Applet
 
 		files = new File[TAG_MAX + 1];
 		ykFiles = new File[YK_TAG_MAX + 1];
+//#if PIV_OBJECT_STORE
+		store = new ObjectStore(STORE_SIZE,
+		    (short)(files.length + ykFiles.length));
+//#endif
 
-		bufmgr = new BufferManager();
 		incoming = new SGList(bufmgr);
+//#if APPLET_RESUME_RESPONSE
+		responses = new SGList[2];
+		responses[0] = new SGList(bufmgr);
+		responses[1] = new SGList(bufmgr);
+		respCur = JCSystem.makeTransientByteArray((short)1,
+		    JCSystem.CLEAR_ON_DESELECT);
+		respKeys = JCSystem.makeTransientShortArray(
+		    (short)(RK_PARKED + 1), JCSystem.CLEAR_ON_DESELECT);
+/*#else
 		outgoing = new SGList(bufmgr);
+#endif*/
 		apduStream = new APDUStream();
+//#if APPLET_INSTRUMENT
+		insStats = new InsStats(INSTRUMENTED_INS);
+//#endif
+//#if PIV_KEY_POOL
+		keyPool = new KeyPool(KEY_POOL_SIZE);
+//#endif
+//#if PIV_COMPRESS_CERTS
+		deflate = new Deflate();
+//#endif
 
 		tempBuf = new TransientBuffer();
 		outBuf = new TransientBuffer();
@@ -441,31 +582,31 @@ public class PivApplet extends Applet
 		pukPin = new OwnerPIN(pukRetries, (byte)8);
 		pukPin.update(DEFAULT_PUK, (short)0, (byte)8);
 
-		files[TAG_CERT_9A] = new File();
+		files[TAG_CERT_9A] = newFile(File.CAP_CERT);
 		slots[SLOT_9A].cert = files[TAG_CERT_9A];
 
-		files[TAG_CERT_9C] = new File();
+		files[TAG_CERT_9C] = newFile(File.CAP_CERT);
 		slots[SLOT_9C].cert = files[TAG_CERT_9C];
 		slots[SLOT_9C].pinPolicy = PivSlot.P_ALWAYS;
 
-		files[TAG_CERT_9D] = new File();
+		files[TAG_CERT_9D] = newFile(File.CAP_CERT);
 		slots[SLOT_9D].cert = files[TAG_CERT_9D];
 
-		files[TAG_CERT_9E] = new File();
+		files[TAG_CERT_9E] = newFile(File.CAP_CERT);
 		slots[SLOT_9E].cert = files[TAG_CERT_9E];
 		slots[SLOT_9E].pinPolicy = PivSlot.P_NEVER;
 
-		files[TAG_FINGERPRINTS] = new File();
+		files[TAG_FINGERPRINTS] = newFile((short)0);
 		files[TAG_FINGERPRINTS].contact = File.P_PIN;
 
-		files[TAG_FACE] = new File();
+		files[TAG_FACE] = newFile((short)0);
 		files[TAG_FACE].contact = File.P_PIN;
 
-		files[TAG_PRINTED_INFO] = new File();
+		files[TAG_PRINTED_INFO] = newFile((short)0);
 		files[TAG_PRINTED_INFO].contact = File.P_PIN;
 
 //#if YKPIV_ATTESTATION
-		ykFiles[TAG_YK_ATTEST] = new File();
+		ykFiles[TAG_YK_ATTEST] = newFile((short)0);
 		slots[SLOT_F9].cert = ykFiles[TAG_YK_ATTEST];
 //#endif
 
@@ -478,12 +619,23 @@ public class PivApplet extends Applet
 		files[TAG_FACE].contactless = File.P_PIN;
 //#endif
 
+		initSelectResponse();
 		initCARDCAP();
 		initCHUID();
 		initKEYHIST();
+		initDISCOVERY();
 //#if YKPIV_ATTESTATION
 		initAttestation();
 //#endif
+
+//#if APPLET_TRACE
+		/*
+		 * Only start tracing once we're done with setup: until init()
+		 * makes the counter arrays, Trace ignores everything, so the
+		 * buffers and objects made above don't show up in them.
+		 */
+		Trace.init();
+//#endif
 	}
 
 	public void
@@ -524,13 +676,54 @@ public class PivApplet extends Applet
 		if (chainBit == 0)
 			lockPINAlwaysSlots();
 
-		switch (ins) {
-		case INS_GET_DATA:
+		/* Anything else in the middle of a streaming PUT DATA ends it. */
+		if (ins != INS_PUT_DATA)
+			endPutStream();
+
+//#if APPLET_RESUME_RESPONSE
+		if (ins != INS_GET_RESPONSE && chainBit == 0)
+			parkResponse(ins, buffer[ISO7816.OFFSET_P1]);
+//#endif
+
+//#if APPLET_INSTRUMENT
+		insStats.begin();
+		try {
+			processIns(apdu, ins);
+		} catch (ISOException ex) {
+			insStats.end(ins, (chainBit != 0), ex.getReason());
+			throw (ex);
+		} catch (CardRuntimeException ex) {
+			insStats.end(ins, (chainBit != 0),
+			    ISO7816.SW_UNKNOWN);
+			throw (ex);
+		}
+		insStats.end(ins, (chainBit != 0), ISO7816.SW_NO_ERROR);
+/*#else
+		processIns(apdu, ins);
+#endif*/
+	}
+
+	private void
+	processIns(final APDU apdu, final byte ins)
+	{
+		/*
+		 * The commands we see most often (a long response, reading
+		 * certs, and signing) get checked for before the switch.
+		 */
+		if (ins == INS_GET_RESPONSE) {
+			continueResponse(apdu);
+			return;
+		}
+		if (ins == INS_GET_DATA) {
 			processGetData(apdu);
-			break;
-		case INS_GEN_AUTH:
+			return;
+		}
+		if (ins == INS_GEN_AUTH) {
 			processGeneralAuth(apdu);
-			break;
+			return;
+		}
+
+		switch (ins) {
 		case INS_PUT_DATA:
 			processPutData(apdu);
 			break;
@@ -564,9 +757,16 @@ public class PivApplet extends Applet
 		case INS_SG_DEBUG:
 			processSGDebug(apdu);
 			break;
-		case INS_GET_RESPONSE:
-			continueResponse(apdu);
+//#if PIV_KEY_POOL
+		case INS_PREPARE_KEYS:
+			processPrepareKeys(apdu);
+			break;
+//#endif
+//#if PIV_OBJECT_STORE
+		case INS_STORE:
+			processStore(apdu);
 			break;
+//#endif
 //#if YKPIV_ATTESTATION
 		case INS_ATTEST:
 			processAttest(apdu);
@@ -583,6 +783,103 @@ public class PivApplet extends Applet
 		}
 	}
 
+	/*
+	 * Asks the card for a new instance of one of the ENG_* engines.
+	 * Returns null if it doesn't support that algorithm.
+	 */
+	private Object
+	newEngine(final byte eng)
+	{
+		try {
+			switch (eng) {
+			case ENG_RSA_NOPAD:
+				return (Cipher.getInstance(Cipher.ALG_RSA_NOPAD,
+				    useResetMem));
+			case ENG_RSA_SHA:
+				return (Signature.getInstance(
+				    Signature.ALG_RSA_SHA_PKCS1, useResetMem));
+			case ENG_RSA_SHA256:
+				return (Signature.getInstance(
+				    ALG_RSA_SHA_256_PKCS1, useResetMem));
+			case ENG_ECDH:
+				return (KeyAgreement.getInstance(ecdhAlg,
+				    useResetMem));
+			case ENG_ECDH_SHA:
+				return (KeyAgreement.getInstance(
+				    KeyAgreement.ALG_EC_SVDP_DH, useResetMem));
+			case ENG_ECDSA_SHA:
+				return (Signature.getInstance(
+				    Signature.ALG_ECDSA_SHA, useResetMem));
+			case ENG_ECDSA_SHA256:
+				return (Signature.getInstance(
+				    ECParams.ALG_ECDSA_SHA_256, useResetMem));
+			case ENG_ECDSA_SHA384:
+				return (Signature.getInstance(
+				    ECParams.ALG_ECDSA_SHA_384, useResetMem));
+			}
+		} catch (CryptoException ex) {
+			if (ex.getReason() != CryptoException.NO_SUCH_ALGORITHM)
+				throw (ex);
+		}
+		return (null);
+	}
+
+	/*
+	 * Called at install time to find out whether the card supports an
+	 * engine, which we need to know up front (e.g. for the list of
+	 * algorithms in the SELECT response).
+	 *
+	 * Normally we just keep the instance we made. In APPLET_LAZY_CRYPTO
+	 * builds we throw it away again if the card can delete objects, and
+	 * engine() makes a new one the first time it's actually used. The
+	 * transient memory each one holds (which for the EC signers can be
+	 * quite a lot) is then left for the BufferManager until we need it.
+	 * After that we keep it: we can't count on the card giving us the
+	 * memory back if we let go of it again.
+	 */
+	private boolean
+	probeEngine(final byte eng)
+	{
+		final Object obj = newEngine(eng);
+		if (obj == null)
+			return (false);
+		engineAvail |= (short)(1 << eng);
+//#if APPLET_LAZY_CRYPTO
+		if (JCSystem.isObjectDeletionSupported())
+			return (true);
+//#endif
+		engines[eng] = obj;
+		return (true);
+	}
+
+	private boolean
+	hasEngine(final byte eng)
+	{
+		return ((engineAvail & (short)(1 << eng)) != 0);
+	}
+
+	/*
+	 * Returns the instance of engine eng, creating it if we haven't made
+	 * it yet. Returns null if the card doesn't support it.
+	 */
+	private Object
+	engine(final byte eng)
+	{
+		if (!hasEngine(eng))
+			return (null);
+//#if APPLET_LAZY_CRYPTO
+		if (engines[eng] == null) {
+			try {
+				engines[eng] = newEngine(eng);
+			} catch (SystemException ex) {
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+				return (null);
+			}
+		}
+//#endif
+		return (engines[eng]);
+	}
+
 	private boolean
 	isContact()
 	{
@@ -604,24 +901,66 @@ public class PivApplet extends Applet
 	}
 #endif*/
 
+	/*
+	 * Only the slots with a bit set in alwaysMask (those which are "PIN
+	 * always" and currently unlocked) need looking at here, and usually
+	 * there are none: this runs before nearly every APDU (including each
+	 * GET RESPONSE), so we don't want to walk through all of slots[].
+	 */
 	private void
 	lockPINAlwaysSlots()
 	{
+		for (short w = (short)0; w < (short)alwaysMask.length; ++w) {
+			short mask = alwaysMask[w];
+			short idx = (short)(w * 16);
+			for (; mask != 0; ++idx,
+			    mask = (short)((mask >> 1) & 0x7FFF)) {
+				if ((short)(mask & 1) == 0)
+					continue;
+				final PivSlot slot = slots[idx];
+				if (slot.flags[PivSlot.F_UNLOCKED] &&
+				    slot.flags[PivSlot.F_AFTER_VERIFY]) {
+					slot.flags[PivSlot.F_UNLOCKED] = false;
+				} else if (slot.flags[PivSlot.F_UNLOCKED]) {
+					slot.flags[PivSlot.F_AFTER_VERIFY] = true;
+				}
+				if (!slot.flags[PivSlot.F_UNLOCKED]) {
+					alwaysMask[w] &= (short)~(short)(
+					    (short)1 << (short)(idx & 0x0F));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Works out alwaysMask from scratch. Call this after anything which
+	 * unlocks slots or changes their PIN policy.
+	 */
+	private void
+	syncAlwaysMask()
+	{
+		for (short w = (short)0; w < (short)alwaysMask.length; ++w)
+			alwaysMask[w] = (short)0;
 		for (short idx = (short)0; idx < MAX_SLOTS; ++idx) {
 			final PivSlot slot = slots[idx];
 			if (slot == null)
 				continue;
-			if (slot.pinPolicy != PivSlot.P_ALWAYS)
+			if (slot.pinPolicy != PivSlot.P_ALWAYS ||
+			    !slot.flags[PivSlot.F_UNLOCKED]) {
 				continue;
-			if (slot.flags[PivSlot.F_UNLOCKED] &&
-			    slot.flags[PivSlot.F_AFTER_VERIFY]) {
-				slot.flags[PivSlot.F_UNLOCKED] = false;
-			} else if (slot.flags[PivSlot.F_UNLOCKED]) {
-				slot.flags[PivSlot.F_AFTER_VERIFY] = true;
 			}
+			alwaysMask[(short)(idx >> 4)] |=
+			    (short)((short)1 << (short)(idx & 0x0F));
 		}
 	}
 
+	private void
+	setPinPolicy(final PivSlot slot, final byte policy)
+	{
+		slot.pinPolicy = policy;
+		syncAlwaysMask();
+	}
+
 	private void
 	processGetVersion(APDU apdu)
 	{
@@ -666,32 +1005,30 @@ public class PivApplet extends Applet
 
 		// PIN_P2 || PUK_P2
 		if (key == (byte)0x80 || key == (byte)0x81) {
-			outgoing.reset();
-			wtlv.start(outgoing);
-			outgoingLe = apdu.setOutgoing();
-			wtlv.useApdu((short)0, outgoingLe);
-
-			// Tag 0x05, one byte, whether the PIN or PUK is default
-			wtlv.writeTagRealLen((byte)0x05, (short)1);
-			if (key == (byte)0x80 && pivPinIsDefault)
-				wtlv.writeByte((byte)1);
-			else if (key == (byte)0x81 && pukPinIsDefault)
-				wtlv.writeByte((byte)1);
-			else
-				wtlv.writeByte((byte)0);
-
-			// Tag 0x06, two bytes, [total number of retries] [remaining retries]
-			wtlv.writeTagRealLen((byte)0x06, (short)2);
+			final short off = pinMetaOff;
+			Util.arrayCopyNonAtomic(PIN_META_TMPL, (short)0,
+			    pinMeta, off, (short)PIN_META_TMPL.length);
 			if (key == (byte)0x80) {
-				wtlv.writeByte(pinRetries);
-				wtlv.writeByte(pivPin.getTriesRemaining());
-			} else if (key == (byte)0x81) {
-				wtlv.writeByte(pukRetries);
-				wtlv.writeByte(pukPin.getTriesRemaining());
+				if (pivPinIsDefault) {
+					pinMeta[(short)(off + PIN_META_DEFAULT)] =
+					    (byte)1;
+				}
+				pinMeta[(short)(off + PIN_META_TOTAL)] =
+				    pinRetries;
+				pinMeta[(short)(off + PIN_META_REMAINING)] =
+				    pivPin.getTriesRemaining();
+			} else {
+				if (pukPinIsDefault) {
+					pinMeta[(short)(off + PIN_META_DEFAULT)] =
+					    (byte)1;
+				}
+				pinMeta[(short)(off + PIN_META_TOTAL)] =
+				    pukRetries;
+				pinMeta[(short)(off + PIN_META_REMAINING)] =
+				    pukPin.getTriesRemaining();
 			}
-
-			wtlv.end();
-			sendOutgoing(apdu);
+			sendCached(apdu, pinMeta, off,
+			    (short)PIN_META_TMPL.length);
 			return;
 		}
 
@@ -717,10 +1054,25 @@ public class PivApplet extends Applet
 			return;
 		}
 
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		if (!slot.metaValid)
+			initSlotMetadata(key, slot);
+		sendCached(apdu, slot.meta.data, (short)0, slot.meta.len);
+	}
+
+	/*
+	 * Encodes the INS_GET_MDATA response for a key slot into slot.meta.
+	 *
+	 * Getting the public key out of a KeyPair is not cheap on most cards,
+	 * so we only do it once and keep the result until something clears
+	 * slot.metaValid (generate, import, SET MGMT KEY or a reset).
+	 */
+	private void
+	initSlotMetadata(final byte key, final PivSlot slot)
+	{
+		boolean empty = false;
+
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		// Tag 0x01, one byte, [algo]
 		if (slot.asym != null) {
@@ -773,6 +1125,7 @@ public class PivApplet extends Applet
 				len = rpubk.getExponent(tempBuf.data(), tempBuf.wpos());
 				wtlv.endReserve(len);
 				wtlv.pop();
+				wtlv.pop();
 				break;
 //#endif
 //#if PIV_SUPPORT_EC
@@ -788,17 +1141,43 @@ public class PivApplet extends Applet
 				len = epubk.getW(tempBuf.data(), tempBuf.wpos());
 				wtlv.endReserve(len);
 				wtlv.pop();
+				wtlv.pop();
 				break;
 //#endif
 			default:
-				return;
+				/*
+				 * No usable key in the slot (e.g. after a
+				 * reset): we've always sent back an empty
+				 * response for these.
+				 */
+				empty = true;
 			}
-			wtlv.pop();
 		}
 
 		wtlv.end();
-		sendOutgoing(apdu);
-		return;
+
+		final short len = empty ? (short)0 : outgoing().available();
+
+		if (slot.meta == null)
+			slot.meta = new File();
+		final File f = slot.meta;
+		f.len = len;
+		if (f.data == null || f.data.length < len) {
+			/*
+			 * Make it big enough for any key the slot could ever
+			 * hold, so that changing the key (e.g. from P-256 to
+			 * RSA-2048) doesn't leave an array behind for the GC.
+			 * 9B only holds symmetric keys, whose metadata is
+			 * always the same length.
+			 */
+			short cap = (key == (byte)0x9B) ? len : META_MAX_LEN;
+			if (cap < len)
+				cap = len;
+			f.data = new byte[cap];
+		}
+		outgoing().read(f.data, (short)0, len);
+		outgoing().reset();
+		slot.metaValid = true;
 	}
 
 //#if YKPIV_ATTESTATION
@@ -837,15 +1216,28 @@ public class PivApplet extends Applet
 	}
 //#endif
 
+	/*
+	 * P1 = 00 dumps the state of the incoming SGList, P1 = 01 dumps the
+	 * BufferManager allocation statistics (see BufferManager#writeStats).
+	 */
 	private void
 	processSGDebug(APDU apdu)
 	{
 		short len = (short)0;
 		final short le;
 		final byte[] buffer = apdu.getBuffer();
+		final byte p1 = buffer[ISO7816.OFFSET_P1];
+
+		if (p1 != (byte)0x00 && p1 != (byte)0x01) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
 
 		le = apdu.setOutgoing();
-		len = incoming.writeDebugInfo(buffer, len);
+		if (p1 == (byte)0x01)
+			len = bufmgr.writeStats(buffer, len);
+		else
+			len = incoming.writeDebugInfo(buffer, len);
 
 		len = le > 0 ? (le > len ? len : le) : len;
 		apdu.setOutgoingLength(len);
@@ -870,13 +1262,72 @@ public class PivApplet extends Applet
 		wtlv.pop();
 	}
 
+	/*
+	 * The SELECT response only depends on build flags and on which
+	 * Signature instances we managed to get in the constructor, so we
+	 * build it once at install time (see initSelectResponse()) and send
+	 * it straight out of selectResp.
+	 */
 	private void
 	sendSelectResponse(APDU apdu)
 	{
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		sendCached(apdu, selectResp, (short)0,
+		    (short)selectResp.length);
+	}
+
+	/*
+	 * Sends a response we have already encoded in full. If it fits in the
+	 * first response it goes out in one sendBytesLong(), otherwise (short
+	 * Le) we fall back to sending it in pieces through the outgoing
+	 * SGList, which takes it by reference.
+	 */
+	private void
+	sendCached(final APDU apdu, final byte[] data, final short off,
+	    final short len)
+	{
+		outgoingLe = setOutgoing(apdu);
+		/*
+		 * Hosts are least consistent in how they treat the SELECT
+		 * response, so it always goes out in pieces.
+		 */
+		if (!selectingApplet())
+			checkExactLe(outgoingLe, len);
+		outgoing().reset();
+		if (len <= firstChunk(outgoingLe)) {
+			apdu.setOutgoingLength(len);
+			apdu.sendBytesLong(data, off, len);
+			return;
+		}
+		outgoing().append(data, off, len);
+		sendOutgoing(apdu);
+	}
+
+	/*
+	 * For responses which cost us next to nothing to send again (ones
+	 * we've cached, and stored objects), if the host's Le is too short but
+	 * the whole response would fit in a single short APDU, we tell it the
+	 * exact Le to use (6Cxx) instead of sending just part of it. That way
+	 * the host only needs the one retry, and is told the length up front
+	 * instead of having to guess with a probe.
+	 *
+	 * Responses which do real work (e.g. signatures) always go out in
+	 * pieces with 61xx instead: the host re-sending the command would mean
+	 * doing it all again.
+	 */
+	private static void
+	checkExactLe(final short le, final short len)
+	{
+		if (le > (short)0 && le < len && len <= (short)0xFF) {
+			ISOException.throwIt((short)(
+			    ISO7816.SW_CORRECT_LENGTH_00 | len));
+		}
+	}
+
+	private void
+	initSelectResponse()
+	{
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		wtlv.push256((byte)0x61);
 
@@ -933,10 +1384,10 @@ public class PivApplet extends Applet
 		pushAlgorithm(PIV_ALG_RSA2048);
 //#endif
 //#if PIV_SUPPORT_EC
-		if (ecdsaSha != null || ecdsaSha256 != null) {
+		if (hasEngine(ENG_ECDSA_SHA) || hasEngine(ENG_ECDSA_SHA256)) {
 			pushAlgorithm(PIV_ALG_ECCP256);
 		}
-		if (ecdsaSha384 != null) {
+		if (hasEngine(ENG_ECDSA_SHA384)) {
 			pushAlgorithm(PIV_ALG_ECCP384);
 		}
 //#endif
@@ -944,13 +1395,78 @@ public class PivApplet extends Applet
 		wtlv.pop();
 		wtlv.end();
 
-		sendOutgoing(apdu);
+		final short len = outgoing().available();
+		selectResp = new byte[len];
+		outgoing().read(selectResp, (short)0, len);
+		outgoing().reset();
+	}
+
+	/*
+	 * Length of the APDU buffer. jcardsim's extended APDU buffer is longer
+	 * than 32k, which comes out negative as a short, so we cap it there.
+	 */
+	static short
+	apduBufLen()
+	{
+		final short len = (short)APDU.getCurrentAPDUBuffer().length;
+		if (len < 0)
+			return ((short)0x7FFF);
+		return (len);
+	}
+
+	/*
+	 * Returns how many bytes sendOutgoing() will put into a single
+	 * response for a given Le. This is also how much of the APDU buffer
+	 * can be handed to the TlvWriter as the first outgoing segment:
+	 * anything past it has to survive until the next GET RESPONSE, and
+	 * the APDU buffer contents don't.
+	 */
+	private static short
+	firstChunk(final short le)
+	{
+//#if APPLET_EXTLEN
+		/*
+		 * A host which sent an extended Le can take everything it
+		 * asked for in one response. A short Le of 00 also comes
+		 * through as 256, which is just as good.
+		 */
+		if (le >= (short)0x100)
+			return (le);
+//#endif
+		if (le > (short)0 && le < (short)0xFF)
+			return (le);
+		return ((short)0xFF);
+	}
+
+	/*
+	 * Calls apdu.setOutgoing() and returns the Le. jcardsim gives back an
+	 * extended Le of 0000 (65536) as 0, and any from 8000 up as negative,
+	 * where real cards give 7FFF, so we do the same for them here.
+	 *
+	 * We have to find out whether the command was extended length before
+	 * setOutgoing(), since getOffsetCdata() can't be used after it (or
+	 * before the command's data has been received).
+	 */
+	private static short
+	setOutgoing(final APDU apdu)
+	{
+//#if APPLET_EXTLEN
+		if (apdu.getCurrentState() == APDU.STATE_INITIAL)
+			apdu.setIncomingAndReceive();
+		final boolean ext = (apdu.getOffsetCdata() == (short)7);
+		final short le = apdu.setOutgoing();
+		if (ext && le <= (short)0)
+			return ((short)0x7FFF);
+		return (le);
+/*#else
+		return (apdu.setOutgoing());
+#endif*/
 	}
 
 	private void
 	sendOutgoing(APDU apdu)
 	{
-		final short len = outgoing.available();
+		final short len = outgoing().available();
 		if (len < 1) {
 			ISOException.throwIt(
 			    ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -961,46 +1477,221 @@ public class PivApplet extends Applet
 		if (apdu.getCurrentState() == APDU.STATE_OUTGOING)
 			le = outgoingLe;
 		else
-			le = apdu.setOutgoing();
+			le = setOutgoing(apdu);
 
 		short toSend = len;
-		if (le > 0 && toSend > le)
-			toSend = le;
-		if (toSend > (short)0xFF)
-			toSend = (short)0xFF;
+		final short maxSend = firstChunk(le);
+		if (toSend > maxSend)
+			toSend = maxSend;
 
 		final short rem = (short)(len - toSend);
 		final byte wantNext =
 		    rem > (short)0xFF ? (byte)0xFF : (byte)rem;
 
 		apdu.setOutgoingLength(toSend);
-		outgoing.readToApdu((short)0, toSend);
+//#if APPLET_EXTLEN
+		/*
+		 * An extended response can be bigger than the APDU buffer,
+		 * in which case we send it one buffer-full at a time.
+		 */
+		final short bufLen = apduBufLen();
+		short sent = (short)0;
+		while (sent < toSend) {
+			short take = (short)(toSend - sent);
+			if (take > bufLen)
+				take = bufLen;
+			outgoing().readToApdu((short)0, take);
+			apdu.sendBytes((short)0, take);
+			sent += take;
+		}
+/*#else
+		outgoing().readToApdu((short)0, toSend);
 		apdu.sendBytes((short)0, toSend);
+#endif*/
 
 		if (rem > 0) {
 			ISOException.throwIt(
 			    (short)(ISO7816.SW_BYTES_REMAINING_00 |
 			    ((short)wantNext & (short)0x00ff)));
 		} else {
-			outgoing.reset();
+			outgoing().reset();
 			ISOException.throwIt(ISO7816.SW_NO_ERROR);
 		}
 	}
 
+	/*
+	 * GENERAL AUTHENTICATE responses which fit in a single response APDU
+	 * can be built in-place at the end of the APDU buffer: the signature
+	 * or cipher output goes straight into the buffer and the 7C/82 tag
+	 * headers get written just in front of it, so it can be sent without
+	 * allocating anything or copying it through the outgoing SGList.
+	 *
+	 * Returns the offset at which to write up to maxLen bytes of output,
+	 * or -1 if the response won't fit in the first response APDU or
+	 * would overlap the input (when the input is still in the APDU
+	 * buffer). Must be called after setOutgoing().
+	 */
+	private short
+	gaInPlaceOffset(final TransientBuffer input, final short inLen,
+	    final short maxLen)
+	{
+		final short bufLen = apduBufLen();
+
+		final short total = TlvWriter.sizeWithByteTag(
+		    TlvWriter.sizeWithByteTag(maxLen));
+		if (total > firstChunk(outgoingLe) || total > bufLen)
+			return ((short)-1);
+
+		final short off = (short)(bufLen - maxLen);
+		if (input.isApdu() && (short)(input.rpos() + inLen) >
+		    (short)(bufLen - total)) {
+			return ((short)-1);
+		}
+		return (off);
+	}
+
+	private void
+	sendGaInPlace(final APDU apdu, final short off, final short len)
+	{
+		final byte[] buf = apdu.getBuffer();
+		final short inner = TlvWriter.sizeWithByteTag(len);
+		final short total = TlvWriter.sizeWithByteTag(inner);
+		final short start = (short)(off - (short)(total - len));
+
+		short p = TlvWriter.putTagRealLen(buf, start, (byte)0x7C, inner);
+		TlvWriter.putTagRealLen(buf, p, GA_TAG_RESPONSE, len);
+
+		outgoing().reset();
+		apdu.setOutgoingLength(total);
+		apdu.sendBytes(start, total);
+	}
+
+	/* The SGList the response to the current command goes in. */
+	private SGList
+	outgoing()
+	{
+//#if APPLET_RESUME_RESPONSE
+		return (responses[respCur[0]]);
+/*#else
+		return (outgoing);
+#endif*/
+	}
+
 	private void
 	continueResponse(APDU apdu)
 	{
+//#if APPLET_RESUME_RESPONSE
+		/*
+		 * GET RESPONSE with P1 and P2 set to the INS and key of a parked
+		 * response resumes that one, and with those of the current
+		 * response just carries on with it. A plain GET RESPONSE
+		 * resumes the parked one too, if there's nothing else left to
+		 * send.
+		 */
+		final byte[] buffer = apdu.getBuffer();
+		final short key = Util.getShort(buffer, ISO7816.OFFSET_P1);
+		if (key != (short)0 && (key != respKeys[RK_OUTGOING] ||
+		    outgoing().available() < 1)) {
+			if (key != respKeys[RK_PARKED] ||
+			    parked().available() < 1) {
+				ISOException.throwIt(
+				    ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				return;
+			}
+			resumeParked();
+		} else if (key == (short)0 && outgoing().available() < 1 &&
+		    parked().available() > 0) {
+			resumeParked();
+		}
+//#endif
 		sendOutgoing(apdu);
 	}
 
+//#if APPLET_RESUME_RESPONSE
+	private SGList
+	parked()
+	{
+		return (responses[(byte)(respCur[0] ^ 1)]);
+	}
+
+	/*
+	 * Called before each new command (other than GET RESPONSE). If there
+	 * is still some of a response left to send, we put it aside in the
+	 * parked SGList (throwing away whatever was parked before) so that the
+	 * host can come back for the rest after this command, instead of
+	 * having to ask for it all over again. For an attestation that means
+	 * making and signing a whole new certificate.
+	 *
+	 * The rest of the response is copied into buffers of the parked
+	 * SGList's own as we do this, since the current one can point into
+	 * memory (the TlvWriter's scratch space, tempBuf etc) which the next
+	 * command is free to re-use. If there isn't room for a copy, the
+	 * response is just thrown away, as in builds without this.
+	 *
+	 * Commands which could make a parked response out of date (e.g. by
+	 * replacing the key or certificate it was about) throw away both.
+	 */
+	private void
+	parkResponse(final byte ins, final byte p1)
+	{
+		final SGList cur = outgoing();
+		final SGList park = parked();
+
+		switch (ins) {
+		case INS_PUT_DATA:
+		case INS_GEN_ASYM:
+		case INS_IMPORT_ASYM:
+		case INS_RESET:
+			park.resetAndFree();
+			cur.reset();
+			break;
+		default:
+			if (cur.available() < 1)
+				break;
+			park.resetAndFree();
+			respKeys[RK_PARKED] = respKeys[RK_OUTGOING];
+			try {
+				park.presize(cur.available());
+				park.copyFrom(cur);
+			} catch (ISOException ex) {
+				park.resetAndFree();
+			}
+			cur.resetAndFree();
+		}
+		respKeys[RK_OUTGOING] = Util.makeShort(ins, p1);
+	}
+
+	/*
+	 * Makes the parked response the current one. Anything left of the
+	 * current one is thrown away: it hasn't been copied, so it may point
+	 * at memory which is only good until the next command.
+	 */
+	private void
+	resumeParked()
+	{
+		outgoing().resetAndFree();
+		respCur[0] = (byte)(respCur[0] ^ 1);
+		respKeys[RK_OUTGOING] = respKeys[RK_PARKED];
+	}
+//#endif
+
 	private Readable
 	receiveChain(APDU apdu)
+	{
+		return (receiveChain(apdu, apdu.setIncomingAndReceive()));
+	}
+
+	/*
+	 * As above, for when the caller has already called
+	 * setIncomingAndReceive() itself and got recvLen bytes.
+	 */
+	private Readable
+	receiveChain(APDU apdu, short recvLen)
 	{
 		final byte[] buf = apdu.getBuffer();
 		final byte chainBit =
 		    (byte)(buf[ISO7816.OFFSET_CLA] & (byte)0x10);
 
-		short recvLen = apdu.setIncomingAndReceive();
 //#if APPLET_EXTLEN
 		final short cdata = apdu.getOffsetCdata();
 /*#else
@@ -1021,8 +1712,10 @@ public class PivApplet extends Applet
 			return (apduStream);
 		}
 
-		if (incoming.atEnd())
+		if (incoming.atEnd()) {
 			incoming.reset();
+			presizeIncoming(buf, cdata, recvLen);
+		}
 
 		while (recvLen > 0) {
 			incoming.write(buf, cdata, recvLen);
@@ -1037,6 +1730,39 @@ public class PivApplet extends Applet
 		return (incoming);
 	}
 
+	/*
+	 * When a GENERAL AUTHENTICATE command gets chained (e.g. an RSA-2048
+	 * block split over two APDUs), the first chunk tells us how long the
+	 * whole 7C template will be. We use that to make incoming's first
+	 * buffer big enough for all of it up front, so the chunks land
+	 * next to each other and the challenge can be handed to the cipher as
+	 * one slice, without tlv.read() having to allocate a new buffer and
+	 * gather the pieces into it.
+	 *
+	 * Only done for lengths that will fit in one transient BaseBuffer;
+	 * anything else is left to allocate as usual.
+	 */
+	private void
+	presizeIncoming(final byte[] buf, short off, final short len)
+	{
+		if (len < 2 || buf[off++] != (byte)0x7C)
+			return;
+
+		short total = (short)0;
+		final byte lenByte = buf[off++];
+		if (lenByte == (byte)0x81 && len >= 3) {
+			total = (short)(3 + (short)((short)buf[off] & 0xFF));
+		} else if (lenByte == (byte)0x82 && len >= 4) {
+			total = (short)(4 + Util.getShort(buf, off));
+		} else if (lenByte >= 0) {
+			total = (short)(2 + lenByte);
+		}
+
+		if (total <= len || total > BaseBuffer.RAM_ALLOC_SIZE)
+			return;
+		incoming.presize(total);
+	}
+
 	private void
 	processGenAsym(APDU apdu)
 	{
@@ -1078,6 +1804,8 @@ public class PivApplet extends Applet
 			return;
 		}
 
+		slot.metaValid = false;
+
 		lc = apdu.setIncomingAndReceive();
 //#if APPLET_EXTLEN
 		final short inLc = apdu.getIncomingLength();
@@ -1140,20 +1868,20 @@ public class PivApplet extends Applet
 				switch (tag) {
 				case PivSlot.P_DEFAULT:
 					if (key == (byte)0x9e) {
-						slot.pinPolicy =
-						    PivSlot.P_NEVER;
+						setPinPolicy(slot,
+						    PivSlot.P_NEVER);
 					} else if (key == (byte)0x9c) {
-						slot.pinPolicy =
-						    PivSlot.P_ALWAYS;
+						setPinPolicy(slot,
+						    PivSlot.P_ALWAYS);
 					} else {
-						slot.pinPolicy =
-						    PivSlot.P_ONCE;
+						setPinPolicy(slot,
+						    PivSlot.P_ONCE);
 					}
 					break;
 				case PivSlot.P_NEVER:
 				case PivSlot.P_ONCE:
 				case PivSlot.P_ALWAYS:
-					slot.pinPolicy = tag;
+					setPinPolicy(slot, tag);
 					break;
 				default:
 					ISOException.throwIt(
@@ -1172,86 +1900,144 @@ public class PivApplet extends Applet
 			return;
 		}
 
+		boolean pooled = false;
+//#if PIV_KEY_POOL
+		pooled = takePooledKey(slot, alg);
+//#endif
+		if (!pooled) {
+			slot.asym = buildKeyPair(alg, slot.asym, slot.asymAlg);
+			slot.asymAlg = alg;
+			generateKeyPair(slot.asym);
+		}
+
+		slot.imported = false;
+
+		outgoing().reset();
+		wtlv.start(outgoing());
+		outgoingLe = setOutgoing(apdu);
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
+
+		switch (alg) {
+//#if PIV_SUPPORT_RSA
+		case PIV_ALG_RSA1024:
+		case PIV_ALG_RSA2048:
+			RSAPublicKey rpubk =
+			    (RSAPublicKey)slot.asym.getPublic();
+			final short rsalen = (short)(rpubk.getSize() / 8);
+
+			wtlv.push((short)0x7F49, (short)(rsalen + 14));
+
+			wtlv.push((byte)0x81, (short)(rsalen + 1));
+			wtlv.startReserve((short)(rsalen + 1), tempBuf);
+			cLen = rpubk.getModulus(tempBuf.data(), tempBuf.wpos());
+			wtlv.endReserve(cLen);
+			wtlv.pop();
+
+			wtlv.push((byte)0x82);
+			wtlv.startReserve((short)9, tempBuf);
+			cLen = rpubk.getExponent(tempBuf.data(), tempBuf.wpos());
+			wtlv.endReserve(cLen);
+			wtlv.pop();
+			break;
+//#endif
+//#if PIV_SUPPORT_EC
+		case PIV_ALG_ECCP256:
+		case PIV_ALG_ECCP384:
+			ECPublicKey epubk =
+			    (ECPublicKey)slot.asym.getPublic();
+			final short eclen = (short)(epubk.getSize() / 4);
+
+			wtlv.push((short)0x7F49, (short)(eclen + 3));
+
+			wtlv.push((byte)0x86, (short)(eclen + 1));
+			wtlv.startReserve((short)(eclen + 1), tempBuf);
+			cLen = epubk.getW(tempBuf.data(), tempBuf.wpos());
+			wtlv.endReserve(cLen);
+			wtlv.pop();
+			break;
+//#endif
+		default:
+			return;
+		}
+
+		wtlv.pop();
+		wtlv.end();
+
+		sendOutgoing(apdu);
+	}
+
+	/*
+	 * Returns a KeyPair ready to have a key of type alg generated in it.
+	 * If cur is already one of those (curAlg == alg) we re-use it rather
+	 * than allocating a new one, since we can't rely on ever getting the
+	 * memory back.
+	 */
+	private KeyPair
+	buildKeyPair(final byte alg, final KeyPair cur, final byte curAlg)
+	{
 //#if PIV_SUPPORT_EC
 		final ECPrivateKey ecPriv;
 		final ECPublicKey ecPub;
+		final short ecBits;
 //#endif
 
 		switch (alg) {
 //#if PIV_SUPPORT_RSA
 		case PIV_ALG_RSA1024:
-			if (slot.asym == null || slot.asymAlg != alg) {
-				slot.asym = new KeyPair(KeyPair.ALG_RSA_CRT,
-				    (short)1024);
-			}
-			slot.asymAlg = alg;
-			break;
+			if (cur != null && curAlg == alg)
+				return (cur);
+			return (new KeyPair(KeyPair.ALG_RSA_CRT, (short)1024));
 		case PIV_ALG_RSA2048:
-			if (slot.asym == null || slot.asymAlg != alg) {
-				slot.asym = new KeyPair(KeyPair.ALG_RSA_CRT,
-				    (short)2048);
-			}
-			slot.asymAlg = alg;
-			break;
+			if (cur != null && curAlg == alg)
+				return (cur);
+			return (new KeyPair(KeyPair.ALG_RSA_CRT, (short)2048));
 //#endif
 //#if PIV_SUPPORT_EC
 		case PIV_ALG_ECCP256:
-			if (ecdsaSha == null && ecdsaSha256 == null) {
+		case PIV_ALG_ECCP384:
+			if (!hasEngine(ENG_ECDSA_SHA) &&
+			    !hasEngine(ENG_ECDSA_SHA256)) {
 				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
-				return;
+				return (null);
 			}
+			ecBits = (alg == PIV_ALG_ECCP256) ? (short)256 :
+			    (short)384;
 
-			if (slot.asym == null || slot.asymAlg != alg) {
+			final KeyPair kp;
+			if (cur == null || curAlg != alg) {
 				ecPriv = (ECPrivateKey)KeyBuilder.buildKey(
-				    KeyBuilder.TYPE_EC_FP_PRIVATE,
-				    (short)256, false);
+				    KeyBuilder.TYPE_EC_FP_PRIVATE, ecBits, false);
 				ecPub = (ECPublicKey)KeyBuilder.buildKey(
-				    KeyBuilder.TYPE_EC_FP_PUBLIC,
-				    (short)256, false);
-				slot.asym = new KeyPair(
+				    KeyBuilder.TYPE_EC_FP_PUBLIC, ecBits, false);
+				kp = new KeyPair(
 				    (PublicKey)ecPub, (PrivateKey)ecPriv);
 			} else {
-				ecPriv = (ECPrivateKey)slot.asym.getPrivate();
-				ecPub = (ECPublicKey)slot.asym.getPublic();
+				kp = cur;
+				ecPriv = (ECPrivateKey)kp.getPrivate();
+				ecPub = (ECPublicKey)kp.getPublic();
 				ecPriv.clearKey();
 				ecPub.clearKey();
 			}
-			ECParams.setCurveParametersP256(ecPriv);
-			ECParams.setCurveParametersP256(ecPub);
-			slot.asymAlg = alg;
-			break;
-		case PIV_ALG_ECCP384:
-			if (ecdsaSha == null && ecdsaSha256 == null) {
-				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
-				return;
-			}
-			if (slot.asym == null || slot.asymAlg != alg) {
-				ecPriv = (ECPrivateKey)KeyBuilder.buildKey(
-				    KeyBuilder.TYPE_EC_FP_PRIVATE,
-				    (short)384, false);
-				ecPub = (ECPublicKey)KeyBuilder.buildKey(
-				    KeyBuilder.TYPE_EC_FP_PUBLIC,
-				    (short)384, false);
-				slot.asym = new KeyPair(
-				    (PublicKey)ecPub, (PrivateKey)ecPriv);
+			if (alg == PIV_ALG_ECCP256) {
+				ECParams.setCurveParametersP256(ecPriv);
+				ECParams.setCurveParametersP256(ecPub);
 			} else {
-				ecPriv = (ECPrivateKey)slot.asym.getPrivate();
-				ecPub = (ECPublicKey)slot.asym.getPublic();
-				ecPriv.clearKey();
-				ecPub.clearKey();
+				ECParams.setCurveParametersP384(ecPriv);
+				ECParams.setCurveParametersP384(ecPub);
 			}
-			ECParams.setCurveParametersP384(ecPriv);
-			ECParams.setCurveParametersP384(ecPub);
-			slot.asymAlg = alg;
-			break;
+			return (kp);
 //#endif
 		default:
 			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
-			return;
+			return (null);
 		}
+	}
 
+	private void
+	generateKeyPair(final KeyPair kp)
+	{
 		try {
-			slot.asym.genKeyPair();
+			kp.genKeyPair();
 		} catch (CryptoException ex) {
 			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
 			return;
@@ -1267,62 +2053,117 @@ public class PivApplet extends Applet
 				return;
 			}
 		}
+	}
 
-		slot.imported = false;
+//#if PIV_KEY_POOL
+	/*
+	 * If we have a key pair for alg already generated in the keyPool,
+	 * swap it into the slot (and the slot's old KeyPair into the pool, to
+	 * be re-used for a later INS_PREPARE_KEYS). Returns false if there
+	 * wasn't one.
+	 */
+	private boolean
+	takePooledKey(final PivSlot slot, final byte alg)
+	{
+		if (keyPool.count(alg) == 0)
+			return (false);
 
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		final KeyPair old = slot.asym;
 
-		switch (alg) {
-//#if PIV_SUPPORT_RSA
-		case PIV_ALG_RSA1024:
-		case PIV_ALG_RSA2048:
-			RSAPublicKey rpubk =
-			    (RSAPublicKey)slot.asym.getPublic();
-			final short rsalen = (short)(rpubk.getSize() / 8);
+		JCSystem.beginTransaction();
+		final KeyPair kp = keyPool.take(alg, old, slot.asymAlg);
+		slot.asym = kp;
+		slot.asymAlg = alg;
+		JCSystem.commitTransaction();
 
-			wtlv.push((short)0x7F49, (short)(rsalen + 14));
+		/* The old key mustn't be usable while it sits in the pool. */
+		if (old != null)
+			old.getPrivate().clearKey();
+		return (true);
+	}
 
-			wtlv.push((byte)0x81, (short)(rsalen + 1));
-			wtlv.startReserve((short)(rsalen + 1), tempBuf);
-			cLen = rpubk.getModulus(tempBuf.data(), tempBuf.wpos());
-			wtlv.endReserve(cLen);
-			wtlv.pop();
+	/*
+	 * Vendor command: generate a key pair of algorithm P1 into the
+	 * keyPool, ready for the next GENERATE ASYMMETRIC that asks for one.
+	 * Needs the admin key, like GENERATE ASYMMETRIC does.
+	 *
+	 * One key pair is generated per command, if there's room. The
+	 * response is a single byte: how many key pairs of that algorithm
+	 * are now waiting in the pool.
+	 */
+	private void
+	processPrepareKeys(APDU apdu)
+	{
+		final byte[] buffer = apdu.getBuffer();
+		final byte alg = buffer[ISO7816.OFFSET_P1];
 
-			wtlv.push((byte)0x82);
-			wtlv.startReserve((short)9, tempBuf);
-			cLen = rpubk.getExponent(tempBuf.data(), tempBuf.wpos());
-			wtlv.endReserve(cLen);
-			wtlv.pop();
-			break;
+		if (buffer[ISO7816.OFFSET_P2] != (byte)0x00) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
+
+		if (!slots[SLOT_9B].flags[PivSlot.F_UNLOCKED]) {
+			ISOException.throwIt(
+			    ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+			return;
+		}
+
+		final short idx = keyPool.spare(alg);
+		if (idx != -1) {
+			final KeyPair kp = buildKeyPair(alg, keyPool.pair(idx),
+			    keyPool.alg(idx));
+			generateKeyPair(kp);
+			keyPool.fill(idx, alg, kp);
+		}
+
+		apdu.setOutgoing();
+		buffer[0] = (byte)keyPool.count(alg);
+		apdu.setOutgoingLength((short)1);
+		apdu.sendBytes((short)0, (short)1);
+	}
 //#endif
-//#if PIV_SUPPORT_EC
-		case PIV_ALG_ECCP256:
-		case PIV_ALG_ECCP384:
-			ECPublicKey epubk =
-			    (ECPublicKey)slot.asym.getPublic();
-			final short eclen = (short)(epubk.getSize() / 4);
 
-			wtlv.push((short)0x7F49, (short)(eclen + 3));
+//#if PIV_OBJECT_STORE
+	/*
+	 * Vendor command to look at (P1 = 00) or compact (P1 = 01) the
+	 * ObjectStore. Either way, returns the number of bytes used by live
+	 * objects, the number of dead bytes compaction could get back, and the
+	 * number of bytes free, as 3 shorts.
+	 */
+	private void
+	processStore(APDU apdu)
+	{
+		final byte[] buffer = apdu.getBuffer();
 
-			wtlv.push((byte)0x86, (short)(eclen + 1));
-			wtlv.startReserve((short)(eclen + 1), tempBuf);
-			cLen = epubk.getW(tempBuf.data(), tempBuf.wpos());
-			wtlv.endReserve(cLen);
-			wtlv.pop();
+		if (buffer[ISO7816.OFFSET_P2] != (byte)0x00) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
+
+		switch (buffer[ISO7816.OFFSET_P1]) {
+		case (byte)0x00:
+			break;
+		case (byte)0x01:
+			if (!slots[SLOT_9B].flags[PivSlot.F_UNLOCKED]) {
+				ISOException.throwIt(
+				    ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+				return;
+			}
+			store.compact();
 			break;
-//#endif
 		default:
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 			return;
 		}
 
-		wtlv.pop();
-		wtlv.end();
-
-		sendOutgoing(apdu);
+		apdu.setOutgoing();
+		Util.setShort(buffer, (short)0, store.used());
+		Util.setShort(buffer, (short)2, store.dead());
+		Util.setShort(buffer, (short)4, store.free());
+		apdu.setOutgoingLength((short)6);
+		apdu.sendBytes((short)0, (short)6);
 	}
+//#endif
 
 	private void
 	processImportAsym(APDU apdu)
@@ -1364,6 +2205,8 @@ public class PivApplet extends Applet
 		if (input == null)
 			return;
 
+		slot.metaValid = false;
+
 		tlv.start(input);
 
 		switch (alg) {
@@ -1385,7 +2228,8 @@ public class PivApplet extends Applet
 //#endif
 //#if PIV_SUPPORT_EC
 		case PIV_ALG_ECCP256:
-			if (ecdsaSha == null && ecdsaSha256 == null) {
+			if (!hasEngine(ENG_ECDSA_SHA) &&
+			    !hasEngine(ENG_ECDSA_SHA256)) {
 				tlv.abort();
 				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 				return;
@@ -1405,7 +2249,8 @@ public class PivApplet extends Applet
 			slot.asymAlg = alg;
 			break;
 		case PIV_ALG_ECCP384:
-			if (ecdsaSha == null && ecdsaSha256 == null) {
+			if (!hasEngine(ENG_ECDSA_SHA) &&
+			    !hasEngine(ENG_ECDSA_SHA256)) {
 				tlv.abort();
 				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 				return;
@@ -1490,20 +2335,20 @@ public class PivApplet extends Applet
 					switch (tag) {
 					case PivSlot.P_DEFAULT:
 						if (key == (byte)0x9e) {
-							slot.pinPolicy =
-							    PivSlot.P_NEVER;
+							setPinPolicy(slot,
+							    PivSlot.P_NEVER);
 						} else if (key == (byte)0x9c) {
-							slot.pinPolicy =
-							    PivSlot.P_ALWAYS;
+							setPinPolicy(slot,
+							    PivSlot.P_ALWAYS);
 						} else {
-							slot.pinPolicy =
-							    PivSlot.P_ONCE;
+							setPinPolicy(slot,
+							    PivSlot.P_ONCE);
 						}
 						break;
 					case PivSlot.P_NEVER:
 					case PivSlot.P_ONCE:
 					case PivSlot.P_ALWAYS:
-						slot.pinPolicy = tag;
+						setPinPolicy(slot, tag);
 						break;
 					default:
 						tlv.abort();
@@ -1580,20 +2425,20 @@ public class PivApplet extends Applet
 					switch (tag) {
 					case PivSlot.P_DEFAULT:
 						if (key == (byte)0x9e) {
-							slot.pinPolicy =
-							    PivSlot.P_NEVER;
+							setPinPolicy(slot,
+							    PivSlot.P_NEVER);
 						} else if (key == (byte)0x9c) {
-							slot.pinPolicy =
-							    PivSlot.P_ALWAYS;
+							setPinPolicy(slot,
+							    PivSlot.P_ALWAYS);
 						} else {
-							slot.pinPolicy =
-							    PivSlot.P_ONCE;
+							setPinPolicy(slot,
+							    PivSlot.P_ONCE);
 						}
 						break;
 					case PivSlot.P_NEVER:
 					case PivSlot.P_ONCE:
 					case PivSlot.P_ALWAYS:
-						slot.pinPolicy = tag;
+						setPinPolicy(slot, tag);
 						break;
 					default:
 						tlv.abort();
@@ -1663,6 +2508,8 @@ public class PivApplet extends Applet
 			return;
 		}
 
+		slots[SLOT_9B].metaValid = false;
+
 		lc = apdu.setIncomingAndReceive();
 //#if APPLET_EXTLEN
 		final short inLc = apdu.getIncomingLength();
@@ -1831,7 +2678,7 @@ public class PivApplet extends Applet
 					tlv.read(tempBuf, len);
 					comp = Util.arrayCompare(tempBuf.data(),
 					    tempBuf.rpos(), challenge,
-					    (short)0, len);
+					    challengeOff, len);
 					chalValid[0] = false;
 					tlv.end();
 				} else {
@@ -1853,7 +2700,7 @@ public class PivApplet extends Applet
 				}
 
 				ci.init(slot.sym, Cipher.MODE_DECRYPT, iv,
-				    (short)0, len);
+				    ivOff, len);
 				tlv.read(tempBuf, len);
 				if (!bufmgr.alloc(len, outBuf)) {
 					ISOException.throwIt(
@@ -1872,7 +2719,7 @@ public class PivApplet extends Applet
 				}
 				comp = Util.arrayCompare(outBuf.data(),
 				    outBuf.rpos(), challenge,
-				    (short)0, cLen);
+				    challengeOff, cLen);
 				tlv.end();
 				chalValid[0] = false;
 			}
@@ -1898,12 +2745,12 @@ public class PivApplet extends Applet
 			 * The host is asking us for a challenge value
 			 * for them to encrypt and return in a RESPONSE
 			 */
-			outgoing.reset();
-			wtlv.start(outgoing);
-			outgoingLe = apdu.setOutgoing();
-			wtlv.useApdu((short)0, outgoingLe);
+			outgoing().reset();
+			wtlv.start(outgoing());
+			outgoingLe = setOutgoing(apdu);
+			wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
-			randData.generateData(challenge, (short)0, len);
+			randData.generateData(challenge, challengeOff, len);
 			chalValid[0] = true;
 			/*for (byte i = 0; i < (byte)len; ++i)
 				challenge[i] = (byte)(i + 1);*/
@@ -1911,7 +2758,7 @@ public class PivApplet extends Applet
 			wtlv.push((byte)0x7C);
 
 			wtlv.push(GA_TAG_CHALLENGE);
-			wtlv.write(challenge, (short)0, len);
+			wtlv.write(challenge, challengeOff, len);
 			wtlv.pop();
 
 			wtlv.pop();
@@ -1921,12 +2768,12 @@ public class PivApplet extends Applet
 			break;
 
 		case GA_TAG_WITNESS:
-			outgoing.reset();
-			wtlv.start(outgoing);
-			outgoingLe = apdu.setOutgoing();
-			wtlv.useApdu((short)0, outgoingLe);
+			outgoing().reset();
+			wtlv.start(outgoing());
+			outgoingLe = setOutgoing(apdu);
+			wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
-			randData.generateData(challenge, (short)0, len);
+			randData.generateData(challenge, challengeOff, len);
 			chalValid[0] = true;
 			/*for (byte i = 0; i < (byte)len; ++i)
 				challenge[i] = (byte)(i + 1);*/
@@ -1935,9 +2782,9 @@ public class PivApplet extends Applet
 
 			wtlv.push(GA_TAG_WITNESS);
 			ci.init(slot.sym, Cipher.MODE_ENCRYPT, iv,
-			    (short)0, len);
+			    ivOff, len);
 			wtlv.startReserve(len, tempBuf);
-			cLen = ci.doFinal(challenge, (short)0, len,
+			cLen = ci.doFinal(challenge, challengeOff, len,
 			    tempBuf.data(), tempBuf.wpos());
 			wtlv.endReserve(cLen);
 			wtlv.pop();
@@ -1980,16 +2827,16 @@ public class PivApplet extends Applet
 				return;
 			}
 			ci.init(slot.sym, Cipher.MODE_ENCRYPT,
-			    iv, (short)0, len);
+			    iv, ivOff, len);
 			cLen = ci.doFinal(tempBuf.data(),
 			    tempBuf.rpos(), sLen,
 			    outBuf.data(), outBuf.wpos());
 			outBuf.write(cLen);
 
-			outgoing.reset();
-			wtlv.start(outgoing);
-			outgoingLe = apdu.setOutgoing();
-			wtlv.useApdu((short)0, outgoingLe);
+			outgoing().reset();
+			wtlv.start(outgoing());
+			outgoingLe = setOutgoing(apdu);
+			wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
 			wtlv.writeTagRealLen((byte)0x7c,
 			    TlvWriter.sizeWithByteTag(cLen));
@@ -2013,7 +2860,7 @@ public class PivApplet extends Applet
 	    byte alg, final byte key, final Readable input,
 	    final byte wanted, final byte tag)
 	{
-		final Cipher ci = rsaPkcs1;
+		final Cipher ci = (Cipher)engine(ENG_RSA_NOPAD);
 		short cLen;
 		if (slot.asymAlg != alg || slot.asym == null) {
 			tlv.abort();
@@ -2035,23 +2882,33 @@ public class PivApplet extends Applet
 			cLen = (short)256;
 			break;
 		}
+		tlv.read(tempBuf, sLen);
+		tlv.end();
+		ci.init(slot.asym.getPrivate(), Cipher.MODE_ENCRYPT);
+		outgoingLe = setOutgoing(apdu);
+
+		final short inPlace = gaInPlaceOffset(tempBuf, sLen, cLen);
+		if (inPlace >= 0) {
+			cLen = ci.doFinal(tempBuf.data(), tempBuf.rpos(), sLen,
+			    apdu.getBuffer(), inPlace);
+			incoming.resetAndFree();
+			sendGaInPlace(apdu, inPlace, cLen);
+			return;
+		}
+
 		if (!bufmgr.alloc(cLen, outBuf)) {
 			ISOException.throwIt(ISO7816.SW_FILE_FULL);
 			return;
 		}
-		tlv.read(tempBuf, sLen);
-		tlv.end();
-		ci.init(slot.asym.getPrivate(), Cipher.MODE_ENCRYPT);
 		cLen = ci.doFinal(tempBuf.data(), tempBuf.rpos(), sLen,
 		    outBuf.data(), outBuf.wpos());
 		outBuf.write(cLen);
 
 		incoming.resetAndFree();
 
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		outgoing().reset();
+		wtlv.start(outgoing());
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
 		wtlv.writeTagRealLen((byte)0x7c,
 		    TlvWriter.sizeWithByteTag(cLen));
@@ -2079,7 +2936,8 @@ public class PivApplet extends Applet
 
 		/* Are they asking for ECDH? */
 		if (tag == GA_TAG_EXP) {
-			final KeyAgreement ag = ecdh;
+			final KeyAgreement ag =
+			    (KeyAgreement)engine(ENG_ECDH);
 			if (ag == null) {
 				tlv.abort();
 				ISOException.throwIt(
@@ -2108,18 +2966,8 @@ public class PivApplet extends Applet
 			break;
 		}
 
-		final Signature si;
-		switch (sLen) {
-		case 20:
-			si = ecdsaSha;
-			break;
-		case 32:
-			si = ecdsaSha256;
-			break;
-		case 48:
-			si = ecdsaSha384;
-			break;
-		default:
+		final Signature si = ecdsaForHash(sLen);
+		if (si == null) {
 			tlv.abort();
 			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 			return;
@@ -2128,21 +2976,30 @@ public class PivApplet extends Applet
 		tlv.read(tempBuf, sLen);
 		tlv.end();
 
+		si.init(slot.asym.getPrivate(), Signature.MODE_SIGN);
+		outgoingLe = setOutgoing(apdu);
+
+		final short inPlace = gaInPlaceOffset(tempBuf, sLen, cLen);
+		if (inPlace >= 0) {
+			cLen = si.signPreComputedHash(tempBuf.data(),
+			    tempBuf.rpos(), sLen, apdu.getBuffer(), inPlace);
+			sendGaInPlace(apdu, inPlace, cLen);
+			return;
+		}
+
 		if (!bufmgr.alloc(cLen, outBuf)) {
 			ISOException.throwIt(ISO7816.SW_FILE_FULL);
 			return;
 		}
 
-		si.init(slot.asym.getPrivate(), Signature.MODE_SIGN);
 		cLen = si.signPreComputedHash(tempBuf.data(),
 		    tempBuf.rpos(), sLen,
 		    outBuf.data(), outBuf.wpos());
 		outBuf.write(cLen);
 
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		outgoing().reset();
+		wtlv.start(outgoing());
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
 		wtlv.writeTagRealLen((byte)0x7c,
 		    TlvWriter.sizeWithByteTag(cLen));
@@ -2153,6 +3010,129 @@ public class PivApplet extends Applet
 		sendOutgoing(apdu);
 	}
 
+	private Signature
+	ecdsaForHash(final short hashLen)
+	{
+		switch (hashLen) {
+		case 20:
+			return ((Signature)engine(ENG_ECDSA_SHA));
+		case 32:
+			return ((Signature)engine(ENG_ECDSA_SHA256));
+		case 48:
+			return ((Signature)engine(ENG_ECDSA_SHA384));
+		default:
+			return (null);
+		}
+	}
+
+	/*
+	 * Batched ECDSA: a 7C template with more than one 81 (challenge) tag
+	 * gets one 82 (response) back for each of them, in the same order,
+	 * all inside a single 7C.
+	 *
+	 * This is our own extension (SP 800-73-4 only ever has one challenge
+	 * per command). It's there for hosts signing lots of precomputed
+	 * hashes with the same key, so they can do it in a fraction of the
+	 * round trips. The PIN policy check in processGeneralAuth() covers
+	 * the whole command, so a "PIN always" slot gets one batch per VERIFY.
+	 *
+	 * The response is built up in outBuf: we leave room at the front for
+	 * the 7C header, and each signature is written just after its 82
+	 * header. We take up to GA_BATCH_MAX challenges, as long as the
+	 * BufferManager can find an outBuf big enough for all the signatures.
+	 */
+	private void
+	processGenAuthEcBatch(final APDU apdu, final PivSlot slot,
+	    final byte alg, final short nChal, byte tag)
+	{
+		final short maxSig;
+		short cLen;
+
+		if (slot.asymAlg != alg || slot.asym == null) {
+			tlv.abort();
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
+
+		switch (alg) {
+		case PIV_ALG_ECCP256:
+			maxSig = (short)75;
+			break;
+		case PIV_ALG_ECCP384:
+			maxSig = (short)107;
+			break;
+		default:
+			tlv.abort();
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return;
+		}
+
+		if (nChal > GA_BATCH_MAX) {
+			tlv.abort();
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return;
+		}
+
+		if (!bufmgr.alloc((short)(GA_BATCH_HDR +
+		    nChal * TlvWriter.sizeWithByteTag(maxSig)), outBuf)) {
+			tlv.abort();
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			return;
+		}
+		final byte[] obuf = outBuf.data();
+		final short base = outBuf.wpos();
+		short off = (short)(base + GA_BATCH_HDR);
+		Signature last = null;
+
+		while (true) {
+			if (tag == GA_TAG_CHALLENGE) {
+				final short sLen = tlv.tagLength();
+				final Signature si = ecdsaForHash(sLen);
+				if (si == null) {
+					tlv.abort();
+					ISOException.throwIt(
+					    ISO7816.SW_WRONG_DATA);
+					return;
+				}
+				tlv.read(tempBuf, sLen);
+				tlv.end();
+
+				if (si != last) {
+					si.init(slot.asym.getPrivate(),
+					    Signature.MODE_SIGN);
+					last = si;
+				}
+				cLen = si.signPreComputedHash(tempBuf.data(),
+				    tempBuf.rpos(), sLen, obuf,
+				    (short)(off + 2));
+				off = TlvWriter.putTagRealLen(obuf, off,
+				    GA_TAG_RESPONSE, cLen);
+				off += cLen;
+			} else if (tag == GA_TAG_RESPONSE &&
+			    tlv.tagLength() == 0) {
+				tlv.skip();
+			} else {
+				tlv.abort();
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				return;
+			}
+			if (tlv.atEnd())
+				break;
+			tag = tlv.readTag();
+		}
+		incoming.resetAndFree();
+
+		final short inner = (short)(off - (short)(base + GA_BATCH_HDR));
+		final short start = (short)(base + GA_BATCH_HDR -
+		    (short)(TlvWriter.sizeWithByteTag(inner) - inner));
+		TlvWriter.putTagRealLen(obuf, start, (byte)0x7C, inner);
+		outBuf.write((short)(off - base));
+
+		outgoing().reset();
+		outgoing().append(obuf, start, (short)(off - start));
+		sendOutgoing(apdu);
+	}
+
 	private void
 	processGenAuthEcdh(final APDU apdu, final PivSlot slot,
 	    final KeyAgreement ag)
@@ -2176,10 +3156,10 @@ public class PivApplet extends Applet
 		outBuf.write(cLen);
 
 		incoming.reset();
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		outgoing().reset();
+		wtlv.start(outgoing());
+		outgoingLe = setOutgoing(apdu);
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
 
 		wtlv.writeTagRealLen((byte)0x7c,
 		    TlvWriter.sizeWithByteTag(cLen));
@@ -2200,6 +3180,7 @@ public class PivApplet extends Applet
 		final PivSlot slot;
 		final Readable input;
 		boolean hasWitness = false, hasResp = false, hasChal = false;
+		short nChal = 0;
 
 		alg = buffer[ISO7816.OFFSET_P1];
 		key = buffer[ISO7816.OFFSET_P2];
@@ -2283,6 +3264,9 @@ public class PivApplet extends Applet
 					hasResp = true;
 					break;
 				case GA_TAG_CHALLENGE:
+					++nChal;
+					hasChal = true;
+					break;
 				case GA_TAG_EXP:
 					hasChal = true;
 					break;
@@ -2341,6 +3325,11 @@ public class PivApplet extends Applet
 //#if PIV_SUPPORT_EC
 		case PIV_ALG_ECCP256:
 		case PIV_ALG_ECCP384:
+			if (nChal > 1) {
+				processGenAuthEcBatch(apdu, slot, alg, nChal,
+				    tag);
+				break;
+			}
 			processGenAuthEcPlain(apdu, slot, alg, key, input,
 			    wanted, tag);
 			break;
@@ -2652,10 +3641,14 @@ public class PivApplet extends Applet
 				slot.asym.getPrivate().clearKey();
 			slot.asymAlg = (byte)-1;
 			slot.imported = false;
+			slot.metaValid = false;
 			if (slot.cert != null) {
 				slot.cert.len = (short)0;
 			}
 		}
+//#if PIV_KEY_POOL
+		keyPool.clear();
+//#endif
 
 		for (idx = (byte)0; idx < TAG_MAX; ++idx) {
 			final File file = files[idx];
@@ -2697,10 +3690,12 @@ public class PivApplet extends Applet
 		slots[SLOT_9C].pinPolicy = PivSlot.P_ALWAYS;
 		slots[SLOT_9E].pinPolicy = PivSlot.P_NEVER;
 		slots[SLOT_9B].pinPolicy = PivSlot.P_NEVER;
+		syncAlwaysMask();
 
 		initCARDCAP();
 		initCHUID();
 		initKEYHIST();
+		initDISCOVERY();
 //#if YKPIV_ATTESTATION
 		initAttestation();
 //#endif
@@ -2712,6 +3707,310 @@ public class PivApplet extends Applet
 		}
 	}
 
+	/*
+	 * Makes a new File for one of the data objects in files[] or ykFiles[].
+	 * capacity is how big it's likely to get (or 0 if we don't know yet).
+	 */
+	private File
+	newFile(final short capacity)
+	{
+/*#if PIV_OBJECT_STORE
+		return (new File(store));
+#else*/
+		if (capacity == 0)
+			return (new File());
+		return (new File(capacity));
+//#endif
+	}
+
+	/*
+	 * Finds (or creates) the File that a PUT DATA for tag 5F <tag1> <tag2>
+	 * writes into. Returns null if it's not one we store.
+	 */
+	private File
+	putDataFile(final byte tag1, final byte tag2)
+	{
+		if (tag1 == (byte)0xFF) {
+			if (tag2 < 0 || tag2 > YK_TAG_MAX)
+				return (null);
+			if (ykFiles[tag2] == null)
+				ykFiles[tag2] = newFile((short)0);
+			return (ykFiles[tag2]);
+		} else if (tag1 == (byte)0xC1) {
+			if (tag2 < 0 || tag2 > TAG_MAX)
+				return (null);
+			if (files[tag2] == null)
+				files[tag2] = newFile((short)0);
+			return (files[tag2]);
+		}
+		return (null);
+	}
+
+	/*
+	 * Streaming PUT DATA: when a chained PUT DATA starts with the usual
+	 * 5C 03 5F xx xx 53 header all in the first command, we find the
+	 * File it's for straight away and copy each command's data into it
+	 * as it arrives, instead of collecting the whole chain in incoming
+	 * (which for a big certificate means EEPROM buffers) and copying it
+	 * over at the end.
+	 *
+	 * The data goes into the File's spare array, which is only swapped in
+	 * (see File#commit) once the last command in the chain has arrived
+	 * with exactly the right number of bytes, so an interrupted or short
+	 * write leaves the old object as it was.
+	 *
+	 * Returns false if this command isn't part of a streaming PUT DATA
+	 * and should be handled as usual (in which case the command's data
+	 * hasn't been received yet).
+	 */
+	private boolean
+	streamPutData(final APDU apdu)
+	{
+		final byte[] buf = apdu.getBuffer();
+		final boolean chained =
+		    ((byte)(buf[ISO7816.OFFSET_CLA] & (byte)0x10) != 0);
+		File file = (File)putFile[0];
+
+		if (file == null && (!chained || !incoming.atEnd()))
+			return (false);
+
+		short recvLen = apdu.setIncomingAndReceive();
+//#if APPLET_EXTLEN
+		final short cdata = apdu.getOffsetCdata();
+/*#else
+		final short cdata = ISO7816.OFFSET_CDATA;
+#endif*/
+		short off = cdata;
+
+		if (file == null) {
+			off = startPutStream(buf, cdata, recvLen);
+			if (off < 0) {
+				/* Not one we can stream, do it the slow way. */
+				receiveChain(apdu, recvLen);
+				return (true);
+			}
+			file = (File)putFile[0];
+			recvLen -= (short)(off - cdata);
+		}
+
+		while (recvLen > 0) {
+			if ((short)(putState[PUT_OFF] + recvLen) >
+			    putState[PUT_LEN]) {
+				endPutStream();
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				return (true);
+			}
+			Util.arrayCopyNonAtomic(buf, off, file.spare,
+			    (short)(file.spareOff + putState[PUT_OFF]), recvLen);
+			putState[PUT_OFF] += recvLen;
+			recvLen = apdu.receiveBytes(cdata);
+			off = cdata;
+		}
+
+		if (chained)
+			return (true);
+
+		final boolean complete = (putState[PUT_OFF] == putState[PUT_LEN]);
+		boolean needGC = (putState[PUT_GC] != 0);
+		if (complete)
+			file.commit(putState[PUT_LEN]);
+		endPutStream();
+		if (!complete) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			return (true);
+		}
+//#if PIV_COMPRESS_CERTS
+		if (compressCert(file))
+			needGC = true;
+//#endif
+
+		if (needGC) {
+			if (!bufmgr.gcBlewUp) {
+				try {
+					JCSystem.requestObjectDeletion();
+				} catch (Exception e) {
+					bufmgr.gcBlewUp = true;
+				}
+			}
+			bufmgr.cullNonTransient();
+		}
+		return (true);
+	}
+
+//#if PIV_COMPRESS_CERTS
+	/*
+	 * If file holds an uncompressed certificate (70 <cert> 71 01 00 ...),
+	 * replaces it with the same object but with the certificate gzipped
+	 * and CertInfo set to 01 (compressed), as long as that comes out
+	 * smaller. Returns true if an array had to be thrown away to do it
+	 * (see File#prepare).
+	 *
+	 * The certificate is compressed straight into the File's spare
+	 * space, which File#scratch finds without handing it out yet: we
+	 * only prepare() the File once we know how long the new object is.
+	 * Finding the space can move the File (if it's in an ObjectStore
+	 * which needs compacting), so everything we work out about the old
+	 * object before then is kept relative to the start of it.
+	 */
+	private boolean
+	compressCert(final File file)
+	{
+		byte[] data = file.data;
+		final short end = (short)(file.off + file.len);
+		short p = file.off;
+		short certLen;
+
+		if (file.len < (short)8 || data[p++] != (byte)0x70)
+			return (false);
+		certLen = (short)(data[p++] & 0x00FF);
+		if (certLen == (short)0x81) {
+			certLen = (short)(data[p++] & 0x00FF);
+		} else if (certLen == (short)0x82) {
+			certLen = Util.getShort(data, p);
+			p += 2;
+		} else if (certLen > (short)0x80) {
+			return (false);
+		}
+		final short certRel = (short)(p - file.off);
+		final short info = (short)(p + certLen);
+		if (certLen < 0 || info < p ||
+		    (short)(info + 3) > end ||
+		    data[info] != (byte)0x71 ||
+		    data[(short)(info + 1)] != (byte)0x01 ||
+		    data[(short)(info + 2)] != (byte)0x00) {
+			return (false);
+		}
+		final short restRel = (short)(info + 3 - file.off);
+		final short restLen = (short)(end - info - 3);
+
+		/*
+		 * Leave room for the longest 70 header in front, and give up if
+		 * the whole thing won't come out at least a byte shorter.
+		 */
+		final short maxLen = (short)(file.len - 1);
+		final short gzMax = (short)(maxLen - 4 - 3 - restLen);
+		if (gzMax < 1 || !bufmgr.alloc(Deflate.SCRATCH_SIZE, outBuf))
+			return (false);
+		boolean needGC;
+		try {
+			needGC = file.scratch(maxLen);
+		} catch (ISOException ex) {
+			outBuf.free();
+			return (false);
+		}
+		data = file.data;
+		final byte[] dst = file.spare;
+		final short dstOff = file.spareOff;
+		final short gzLen = deflate.compress(data,
+		    (short)(file.off + certRel), certLen,
+		    dst, (short)(dstOff + 4), gzMax,
+		    outBuf.data(), outBuf.offset());
+		outBuf.free();
+		if (gzLen < 0)
+			return (needGC);
+
+		short hdrLen = 2;
+		if (gzLen >= (short)0x100)
+			hdrLen = 4;
+		else if (gzLen >= (short)0x80)
+			hdrLen = 3;
+		final short newLen = (short)(hdrLen + gzLen + 3 + restLen);
+
+		/* This gets the same space back, now for keeps. */
+		if (file.prepare(newLen))
+			needGC = true;
+
+		p = dstOff;
+		dst[p++] = (byte)0x70;
+		if (hdrLen == 2) {
+			dst[p++] = (byte)gzLen;
+		} else if (hdrLen == 3) {
+			dst[p++] = (byte)0x81;
+			dst[p++] = (byte)gzLen;
+		} else {
+			dst[p++] = (byte)0x82;
+			p = Util.setShort(dst, p, gzLen);
+		}
+		if (p != (short)(dstOff + 4)) {
+			Util.arrayCopyNonAtomic(dst, (short)(dstOff + 4), dst, p,
+			    gzLen);
+		}
+		p += gzLen;
+		dst[p++] = (byte)0x71;
+		dst[p++] = (byte)0x01;
+		dst[p++] = (byte)0x01;
+		Util.arrayCopyNonAtomic(data, (short)(file.off + restRel),
+		    dst, p, restLen);
+
+		file.commit(newLen);
+		return (needGC);
+	}
+//#endif
+
+	/*
+	 * Parses the 5C and 53 headers at the start of the first command of a
+	 * chained PUT DATA and gets the File ready to be written. Returns the
+	 * offset of the first byte of the object in buf, or -1 if we can't
+	 * stream this one.
+	 */
+	private short
+	startPutStream(final byte[] buf, short off, final short len)
+	{
+		final short end = (short)(off + len);
+		short objLen;
+
+		/* 5C 03 5F xx xx 53 and a length byte, at least */
+		if (len < 7 || buf[off] != (byte)0x5C ||
+		    buf[(short)(off + 1)] != (byte)0x03 ||
+		    buf[(short)(off + 2)] != (byte)0x5F ||
+		    buf[(short)(off + 5)] != (byte)0x53) {
+			return ((short)-1);
+		}
+
+		if (!slots[SLOT_9B].flags[PivSlot.F_UNLOCKED]) {
+			ISOException.throwIt(
+			    ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+			return ((short)-1);
+		}
+
+		final File file = putDataFile(buf[(short)(off + 3)],
+		    buf[(short)(off + 4)]);
+		if (file == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+			return ((short)-1);
+		}
+		off += 6;
+
+		objLen = (short)(buf[off++] & 0x00FF);
+		if (objLen == (short)0x81) {
+			if (off >= end)
+				return ((short)-1);
+			objLen = (short)(buf[off++] & 0x00FF);
+		} else if (objLen == (short)0x82) {
+			if ((short)(off + 1) >= end)
+				return ((short)-1);
+			objLen = Util.getShort(buf, off);
+			off += 2;
+		} else if (objLen > (short)0x80) {
+			return ((short)-1);
+		}
+		if (objLen < 0)
+			return ((short)-1);
+
+		putState[PUT_GC] = file.prepare(objLen) ?
+		    (short)1 : (short)0;
+		putState[PUT_LEN] = objLen;
+		putState[PUT_OFF] = (short)0;
+		putFile[0] = file;
+		return (off);
+	}
+
+	private void
+	endPutStream()
+	{
+		putFile[0] = null;
+	}
+
 	private void
 	processPutData(APDU apdu)
 	{
@@ -2727,6 +4026,9 @@ public class PivApplet extends Applet
 			return;
 		}
 
+		if (streamPutData(apdu))
+			return;
+
 		input = receiveChain(apdu);
 		if (input == null)
 			return;
@@ -2751,7 +4053,6 @@ public class PivApplet extends Applet
 			final byte tag0 = tlv.readByte();
 			final byte tag1 = tlv.readByte();
 			final byte tag2 = tlv.readByte();
-			final File file;
 
 			if (tag0 != (short)0x5F) {
 				ISOException.throwIt(
@@ -2759,25 +4060,7 @@ public class PivApplet extends Applet
 				return;
 			}
 
-			if (tag1 == (byte)0xFF) {
-				if (tag2 < 0 || tag2 > YK_TAG_MAX) {
-					file = null;
-				} else {
-					if (ykFiles[tag2] == null)
-						ykFiles[tag2] = new File();
-					file = ykFiles[tag2];
-				}
-			} else if (tag1 == (byte)0xC1) {
-				if (tag2 < 0 || tag2 > TAG_MAX) {
-					file = null;
-				} else {
-					if (files[tag2] == null)
-						files[tag2] = new File();
-					file = files[tag2];
-				}
-			} else {
-				file = null;
-			}
+			final File file = putDataFile(tag1, tag2);
 			tlv.end();
 
 			if (file == null) {
@@ -2792,26 +4075,43 @@ public class PivApplet extends Applet
 				return;
 			}
 
-			boolean needGC = false;
+			/*
+			 * The new contents go into the File's spare array and
+			 * are swapped in at the end (see File#prepare), so a
+			 * failed write leaves the old object intact.
+			 *
+			 * Files only ever grow, and in steps (see
+			 * File#capacityFor), and the main cert slots start out
+			 * big enough for most certs. So replacing an object
+			 * with a new one of about the same size (e.g. renewing
+			 * a cert) normally re-uses the arrays it's in.
+			 *
+			 * Only when we did have to throw an array away do we
+			 * ask for object deletion, which is very slow on most
+			 * cards. We tidy up any EEPROM buffers the chained
+			 * command used at the same time: otherwise they're kept
+			 * for next time.
+			 */
 			final short len = tlv.tagLength();
-			if (file.data == null)
-				file.data = new byte[len];
-			if (file.data.length < len) {
-				file.data = new byte[len];
-				needGC = true;
-			}
-			file.len = tlv.read(file.data, (short)0, len);
+			boolean needGC = file.prepare(len);
+			file.commit(tlv.read(file.spare, file.spareOff, len));
 			tlv.end();
 			tlv.finish();
+//#if PIV_COMPRESS_CERTS
+			if (compressCert(file))
+				needGC = true;
+//#endif
 
-			if (needGC && !bufmgr.gcBlewUp) {
-				try {
-					JCSystem.requestObjectDeletion();
-				} catch (Exception e) {
-					bufmgr.gcBlewUp = true;
+			if (needGC) {
+				if (!bufmgr.gcBlewUp) {
+					try {
+						JCSystem.requestObjectDeletion();
+					} catch (Exception e) {
+						bufmgr.gcBlewUp = true;
+					}
 				}
+				bufmgr.cullNonTransient();
 			}
-			bufmgr.cullNonTransient();
 
 		} else {
 			tlv.abort();
@@ -2863,6 +4163,9 @@ public class PivApplet extends Applet
 			final byte tag0 = tlv.readByte();
 			final byte tag1 = tlv.readByte();
 			final byte tag2 = tlv.readByte();
+//#if APPLET_RESUME_RESPONSE
+			respKeys[RK_OUTGOING] = Util.makeShort(INS_GET_DATA, tag2);
+//#endif
 			final File file;
 
 			if (tag0 != (short)0x5F) {
@@ -2871,6 +4174,15 @@ public class PivApplet extends Applet
 				return;
 			}
 
+//#if APPLET_INSTRUMENT
+			if (tag1 == (byte)0xFF && tag2 == TAG_YK_INSTRUMENT) {
+				tlv.end();
+				tlv.finish();
+				sendInsStats(apdu);
+				return;
+			}
+//#endif
+
 			if (tag1 == (byte)0xFF) {
 				if (tag2 < 0 || tag2 > YK_TAG_MAX) {
 					file = null;
@@ -2917,14 +4229,7 @@ public class PivApplet extends Applet
 				return;
 			}
 
-			outgoing.reset();
-			wtlv.start(outgoing);
-			outgoingLe = apdu.setOutgoing();
-			wtlv.useApdu((short)0, outgoingLe);
-			wtlv.writeTagRealLen((byte)0x53, file.len);
-			wtlv.write(file.data, (short)0, file.len);
-			wtlv.end();
-			sendOutgoing(apdu);
+			sendFile(apdu, file);
 
 		} else if (taglen == (short)1 &&
 		    tlv.readByte() == (byte)0x7E) {
@@ -2939,13 +4244,47 @@ public class PivApplet extends Applet
 		}
 	}
 
+	/*
+	 * Sends the contents of a File wrapped in a '53' tag.
+	 *
+	 * Only the tag header goes through the TlvWriter (and into the APDU
+	 * buffer). The object itself is appended to outgoing as a reference
+	 * to file.data, so sendOutgoing() (and each GET RESPONSE after it)
+	 * copies the next chunk straight out of the File at the saved read
+	 * offset. None of it is ever staged in BufferManager memory, no
+	 * matter how small the object or the host's Le are.
+	 */
+	private void
+	sendFile(final APDU apdu, final File file)
+	{
+		outgoingLe = setOutgoing(apdu);
+		checkExactLe(outgoingLe, TlvWriter.sizeWithByteTag(file.len));
+		outgoing().reset();
+		wtlv.start(outgoing());
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
+		wtlv.writeTagRealLen((byte)0x53, file.len);
+		wtlv.end();
+		outgoing().append(file.data, file.off, file.len);
+		sendOutgoing(apdu);
+	}
+
 	private void
 	sendDiscoveryObject(APDU apdu)
 	{
-		outgoing.reset();
-		wtlv.start(outgoing);
-		outgoingLe = apdu.setOutgoing();
-		wtlv.useApdu((short)0, outgoingLe);
+		sendCached(apdu, discovery.data, (short)0, discovery.len);
+	}
+
+	/*
+	 * The discovery object is asked for over and over during enumeration
+	 * by some middleware, so we keep it encoded in a File. Anything which
+	 * changes what goes into it (e.g. the PIN usage policy, if it ever
+	 * becomes configurable) needs to call this again afterwards.
+	 */
+	private void
+	initDISCOVERY()
+	{
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		wtlv.push((byte)0x7E);
 
@@ -2959,9 +4298,47 @@ public class PivApplet extends Applet
 		wtlv.writeByte((byte)0x00);	/* RFU, since no global PIN */
 
 		wtlv.pop();
+		wtlv.end();
+
+		final short len = outgoing().available();
+
+		if (discovery == null)
+			discovery = new File();
+		final File f = discovery;
+		f.len = len;
+		/*
+		 * Nothing in here ever changes length, so the array made at
+		 * install time is the only one (a reset just rewrites it).
+		 */
+		if (f.data == null)
+			f.data = new byte[len];
+		outgoing().read(f.data, (short)0, len);
+		outgoing().reset();
+	}
+
+//#if APPLET_INSTRUMENT
+	/*
+	 * Sends the InsStats counters wrapped in a 53 tag, like a regular
+	 * data object (see InsStats#write for the contents). The GET DATA
+	 * which fetches this gets counted after it's been sent, so it never
+	 * shows up in its own output.
+	 */
+	private void
+	sendInsStats(APDU apdu)
+	{
+		outgoing().reset();
+		wtlv.start(outgoing());
+		outgoingLe = setOutgoing(apdu);
+		wtlv.useApdu((short)0, firstChunk(outgoingLe));
+
+		wtlv.push64k((byte)0x53);
+		insStats.write(wtlv);
+		wtlv.pop();
+
 		wtlv.end();
 		sendOutgoing(apdu);
 	}
+//#endif
 
 	private void
 	syncSecurityStatus()
@@ -2977,6 +4354,7 @@ public class PivApplet extends Applet
 			slot.flags[PivSlot.F_UNLOCKED] = pivPin.isValidated();
 			slot.flags[PivSlot.F_AFTER_VERIFY] = false;
 		}
+		syncAlwaysMask();
 	}
 
 	private void
@@ -3004,8 +4382,8 @@ public class PivApplet extends Applet
 	private void
 	initCARDCAP()
 	{
-		outgoing.reset();
-		wtlv.start(outgoing);
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		/* Card Identifier */
 		wtlv.push((byte)0xF0);
@@ -3054,22 +4432,20 @@ public class PivApplet extends Applet
 
 		wtlv.end();
 
-		final short len = outgoing.available();
+		final short len = outgoing().available();
 
 		if (files[TAG_CARDCAP] == null)
-			files[TAG_CARDCAP] = new File();
+			files[TAG_CARDCAP] = newFile((short)0);
 		final File f = files[TAG_CARDCAP];
-		f.len = len;
-		if (f.data == null || f.data.length < len)
-			f.data = new byte[len];
-		outgoing.read(f.data, (short)0, len);
+		f.prepare(len);
+		f.commit(outgoing().read(f.spare, f.spareOff, len));
 	}
 
 	private void
 	initCHUID()
 	{
-		outgoing.reset();
-		wtlv.start(outgoing);
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		/* FASC-N identifier */
 		wtlv.push((byte)0x30);
@@ -3095,22 +4471,20 @@ public class PivApplet extends Applet
 
 		wtlv.end();
 
-		final short len = outgoing.available();
+		final short len = outgoing().available();
 
 		if (files[TAG_CHUID] == null)
-			files[TAG_CHUID] = new File();
+			files[TAG_CHUID] = newFile((short)0);
 		final File f = files[TAG_CHUID];
-		f.len = len;
-		if (f.data == null || f.data.length < len)
-			f.data = new byte[len];
-		outgoing.read(f.data, (short)0, len);
+		f.prepare(len);
+		f.commit(outgoing().read(f.spare, f.spareOff, len));
 	}
 
 	private void
 	initKEYHIST()
 	{
-		outgoing.reset();
-		wtlv.start(outgoing);
+		outgoing().reset();
+		wtlv.start(outgoing());
 
 		wtlv.push((byte)0xC1);
 		wtlv.writeByte(retiredKeys);
@@ -3125,15 +4499,13 @@ public class PivApplet extends Applet
 
 		wtlv.end();
 
-		final short len = outgoing.available();
+		final short len = outgoing().available();
 
 		if (files[TAG_KEYHIST] == null)
-			files[TAG_KEYHIST] = new File();
+			files[TAG_KEYHIST] = newFile((short)0);
 		final File f = files[TAG_KEYHIST];
-		f.len = len;
-		if (f.data == null || f.data.length < len)
-			f.data = new byte[len];
-		outgoing.read(f.data, (short)0, len);
+		f.prepare(len);
+		f.commit(outgoing().read(f.spare, f.spareOff, len));
 	}
 
 //#if YKPIV_ATTESTATION
@@ -3143,7 +4515,7 @@ public class PivApplet extends Applet
 		final PivSlot atslot = slots[SLOT_F9];
 
 //#if PIV_SUPPORT_EC
-		if (ecdsaSha != null || ecdsaSha256 != null) {
+		if (hasEngine(ENG_ECDSA_SHA) || hasEngine(ENG_ECDSA_SHA256)) {
 			atslot.asymAlg = PIV_ALG_ECCP256;
 			final ECPrivateKey ecPriv;
 			final ECPublicKey ecPub;
@@ -3167,20 +4539,19 @@ public class PivApplet extends Applet
 			writeAttestationCert(atslot);
 		} catch (Exception ex) {
 			/* Ignore it, we just won't make a self-signed one */
-			outgoing.reset();
+			outgoing().reset();
 			incoming.reset();
 			bufmgr.cullNonTransient();
 			return;
 		}
 
-		final short len = outgoing.available();
+		final short len = outgoing().available();
 		final File file = atslot.cert;
 
-		if (file.data == null || file.data.length < len)
-			file.data = new byte[len];
-		file.len = outgoing.read(file.data, (short)0, len);
+		file.prepare(len);
+		file.commit(outgoing().read(file.spare, file.spareOff, len));
 
-		outgoing.reset();
+		outgoing().reset();
 		incoming.reset();
 		bufmgr.cullNonTransient();
 //#endif
@@ -3305,10 +4676,10 @@ public class PivApplet extends Applet
 		if (atslot.asymAlg == PIV_ALG_RSA1024 ||
 		    atslot.asymAlg == PIV_ALG_RSA2048) {
 			wtlv.push(ASN1_OID);
-			if (rsaSha256 != null) {
+			if (hasEngine(ENG_RSA_SHA256)) {
 				wtlv.write(OID_RSA_SHA256, (short)0,
 				    (short)OID_RSA_SHA256.length);
-			} else if (rsaSha != null) {
+			} else if (hasEngine(ENG_RSA_SHA)) {
 				wtlv.write(OID_RSA_SHA, (short)0,
 				    (short)OID_RSA_SHA.length);
 			}
@@ -3320,10 +4691,10 @@ public class PivApplet extends Applet
 //#if PIV_SUPPORT_EC
 		if (atslot.asymAlg == PIV_ALG_ECCP256) {
 			wtlv.push(ASN1_OID);
-			if (ecdsaSha256 != null) {
+			if (hasEngine(ENG_ECDSA_SHA256)) {
 				wtlv.write(OID_ECDSA_SHA256, (short)0,
 				    (short)OID_ECDSA_SHA256.length);
-			} else if (ecdsaSha != null) {
+			} else if (hasEngine(ENG_ECDSA_SHA)) {
 				wtlv.write(OID_ECDSA_SHA, (short)0,
 				    (short)OID_ECDSA_SHA.length);
 			}
@@ -3331,10 +4702,10 @@ public class PivApplet extends Applet
 		}
 		if (atslot.asymAlg == PIV_ALG_ECCP384) {
 			wtlv.push(ASN1_OID);
-			if (ecdsaSha256 != null) {
+			if (hasEngine(ENG_ECDSA_SHA256)) {
 				wtlv.write(OID_ECDSA_SHA256, (short)0,
 				    (short)OID_ECDSA_SHA256.length);
-			} else if (ecdsaSha != null) {
+			} else if (hasEngine(ENG_ECDSA_SHA)) {
 				wtlv.write(OID_ECDSA_SHA, (short)0,
 				    (short)OID_ECDSA_SHA.length);
 			}
@@ -3407,7 +4778,8 @@ public class PivApplet extends Applet
 			/* Key material */
 			wtlv.push(ASN1_BITSTRING);
 			wtlv.writeByte((byte)0x00);	/* no borrowed bits */
-			wtlv.startReserve((short)33, tempBuf);
+			/* Uncompressed point: 04 || x || y */
+			wtlv.startReserve((short)65, tempBuf);
 			len = ecpub.getW(tempBuf.data(), tempBuf.wpos());
 			wtlv.endReserve(len);
 			wtlv.pop();
@@ -3430,7 +4802,7 @@ public class PivApplet extends Applet
 			/* Key material */
 			wtlv.push(ASN1_BITSTRING);
 			wtlv.writeByte((byte)0x00);	/* no borrowed bits */
-			wtlv.startReserve((short)49, tempBuf);
+			wtlv.startReserve((short)97, tempBuf);
 			len = ecpub.getW(tempBuf.data(), tempBuf.wpos());
 			wtlv.endReserve(len);
 			wtlv.pop();
@@ -3519,16 +4891,16 @@ public class PivApplet extends Applet
 
 		if (atslot.asymAlg == PIV_ALG_RSA1024 ||
 		    atslot.asymAlg == PIV_ALG_RSA2048) {
-			if (rsaSha256 != null)
-				si = rsaSha256;
+			if (hasEngine(ENG_RSA_SHA256))
+				si = (Signature)engine(ENG_RSA_SHA256);
 			else
-				si = rsaSha;
+				si = (Signature)engine(ENG_RSA_SHA);
 		} else if (atslot.asymAlg == PIV_ALG_ECCP256 ||
 		    atslot.asymAlg == PIV_ALG_ECCP384) {
-			if (ecdsaSha256 != null)
-				si = ecdsaSha256;
+			if (hasEngine(ENG_ECDSA_SHA256))
+				si = (Signature)engine(ENG_ECDSA_SHA256);
 			else
-				si = ecdsaSha;
+				si = (Signature)engine(ENG_ECDSA_SHA);
 		} else {
 			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 			return;
@@ -3543,38 +4915,46 @@ public class PivApplet extends Applet
 		    (short)certSerial.length);
 		certSerial[0] = (byte)(certSerial[0] & (byte)0x7F);
 
-		outgoing.reset();
-		wtlv.start(outgoing);
+		outgoing().reset();
+		wtlv.start(outgoing());
+
+		if (slot.id == (byte)0xF9)
+			wtlv.push64k((byte)0x70);
+
+		wtlv.push64k(ASN1_SEQ);
+
+		/*
+		 * The TBSCertificate is only written once: we flush the
+		 * TlvWriter around it so that it sits in outgoing between
+		 * two known offsets, and then feed it to the Signature from
+		 * there before carrying on. The length bytes the pop()s below
+		 * patch up later are all outside this range.
+		 */
+		wtlv.end();
+		final short tbsStart = outgoing().wPtr();
 		writeX509CertInfo(slot);
 		wtlv.end();
 
 		si.init(atslot.asym.getPrivate(), Signature.MODE_SIGN);
 
-		avail = outgoing.available();
+		outgoing().skip(tbsStart);
+		avail = (short)(outgoing().wPtr() - tbsStart);
 		while (avail > 0) {
-			final short read = outgoing.readPartial(tempBuf, avail);
+			final short read = outgoing().readPartial(tempBuf, avail);
 			si.update(tempBuf.data(), tempBuf.rpos(), read);
 			avail -= read;
 		}
-
-		outgoing.reset();
-		wtlv.start(outgoing);
-
-		if (slot.id == (byte)0xF9)
-			wtlv.push64k((byte)0x70);
-
-		wtlv.push64k(ASN1_SEQ);
-		writeX509CertInfo(slot);
+		outgoing().rewind();
 
 		wtlv.push(ASN1_SEQ);
 //#if PIV_SUPPORT_RSA
 		if (atslot.asymAlg == PIV_ALG_RSA1024 ||
 		    atslot.asymAlg == PIV_ALG_RSA2048) {
 			wtlv.push(ASN1_OID);
-			if (rsaSha256 != null) {
+			if (hasEngine(ENG_RSA_SHA256)) {
 				wtlv.write(OID_RSA_SHA256, (short)0,
 				    (short)OID_RSA_SHA256.length);
-			} else if (rsaSha != null) {
+			} else if (hasEngine(ENG_RSA_SHA)) {
 				wtlv.write(OID_RSA_SHA, (short)0,
 				    (short)OID_RSA_SHA.length);
 			}
@@ -3587,10 +4967,10 @@ public class PivApplet extends Applet
 		if (atslot.asymAlg == PIV_ALG_ECCP256 ||
 		    atslot.asymAlg == PIV_ALG_ECCP384) {
 			wtlv.push(ASN1_OID);
-			if (ecdsaSha256 != null) {
+			if (hasEngine(ENG_ECDSA_SHA256)) {
 				wtlv.write(OID_ECDSA_SHA256, (short)0,
 				    (short)OID_ECDSA_SHA256.length);
-			} else if (ecdsaSha != null) {
+			} else if (hasEngine(ENG_ECDSA_SHA)) {
 				wtlv.write(OID_ECDSA_SHA, (short)0,
 				    (short)OID_ECDSA_SHA.length);
 			}
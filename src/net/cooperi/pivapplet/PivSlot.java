@@ -28,6 +28,14 @@ public class PivSlot {
 	public boolean imported = false;
 	public File cert = null;
 
+	/*
+	 * Encoded INS_GET_MDATA response for this slot. Anything which changes
+	 * what goes into it (key, algorithm, PIN policy etc) has to clear
+	 * metaValid, and it gets rebuilt on the next request.
+	 */
+	public File meta = null;
+	public boolean metaValid = false;
+
 	public byte pinPolicy = P_ONCE;
 
 	public KeyPair asym = null;
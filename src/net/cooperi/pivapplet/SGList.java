@@ -85,8 +85,16 @@ public class SGList implements Readable {
 	reset()
 	{
 		for (short i = 0; i <= state[WPTR_BUF]; ++i) {
-			final Buffer buf = buffers[i];
-			buf.reset();
+			final TransientBuffer buf = buffers[i];
+			/*
+			 * The APDU buffer is only ours until the end of the
+			 * command that handed it to useApdu(), so don't keep
+			 * writing into it after a reset.
+			 */
+			if (buf.isApdu())
+				buf.free();
+			else
+				buf.reset();
 		}
 		state[WPTR_BUF] = (short)0;
 		state[RPTR_BUF] = (short)0;
@@ -111,11 +119,18 @@ public class SGList implements Readable {
 	 * Use the APDU buffer as the first element in the SGList -- this way
 	 * whatever data is written there can be directly sent without any
 	 * copying.
+	 *
+	 * The length is clamped to the end of the APDU buffer, since callers
+	 * usually pass the host's Le, which can be larger than the buffer
+	 * when extended length APDUs are in use.
 	 */
 	public void
-	useApdu(final short offset, final short len)
+	useApdu(final short offset, short len)
 	{
 		final TransientBuffer buf = buffers[0];
+		final short max = (short)(PivApplet.apduBufLen() - offset);
+		if (len > max)
+			len = max;
 		if (len > 0) {
 			buf.free();
 			buf.setApdu(offset, len);
@@ -204,7 +219,7 @@ public class SGList implements Readable {
 	takeForWrite(final short len)
 	{
 		if (state[WPTR_BUF] >= maxBufs) {
-			ISOException.throwIt(PivApplet.SW_RESERVE_FAILURE);
+			reserveFailed();
 			return ((short)0);
 		}
 		final TransientBuffer buf = buffers[state[WPTR_BUF]];
@@ -223,10 +238,17 @@ public class SGList implements Readable {
 				take = len;
 		}
 		if (take == (short)0)
-			ISOException.throwIt(PivApplet.SW_RESERVE_FAILURE);
+			reserveFailed();
 		return (take);
 	}
 
+	private void
+	reserveFailed()
+	{
+		mgr.countEvent(BufferManager.STAT_RESERVE_FAIL);
+		ISOException.throwIt(PivApplet.SW_RESERVE_FAILURE);
+	}
+
 	private void
 	incWPtr(final short take)
 	{
@@ -255,12 +277,39 @@ public class SGList implements Readable {
 			final Buffer buf = buffers[state[WPTR_BUF]];
 			Util.arrayCopyNonAtomic(source, offset,
 			    buf.data(), buf.wpos(), take);
+//#if APPLET_INSTRUMENT
+			InsStats.copied(take);
+//#endif
+//#if APPLET_TRACE
+			Trace.copy(source, buf.data(), take);
+//#endif
 			offset += take;
 			len -= take;
 			incWPtr(take);
 		}
 	}
 
+	/*
+	 * Makes sure that the first buffer of an empty SGList has room for at
+	 * least len bytes, so that data which arrives in several pieces (e.g.
+	 * over a command chain) ends up contiguous and can be read back out
+	 * with read(TransientBuffer) as one slice, rather than being gathered
+	 * into a newly allocated buffer.
+	 *
+	 * Returns false (leaving the SGList to allocate as it goes) if the
+	 * SGList isn't empty or the space isn't available.
+	 */
+	public boolean
+	presize(final short len)
+	{
+		if (state[WPTR_BUF] != 0 || state[WPTR_TOTOFF] != 0)
+			return (false);
+		final TransientBuffer buf = buffers[0];
+		if (buf.parent() != null && buf.available() >= len)
+			return (true);
+		return (mgr.alloc(len, buf));
+	}
+
 	public void
 	startReserve(final short len, final TransientBuffer into)
 	{
@@ -290,7 +339,7 @@ public class SGList implements Readable {
 			return;
 		}
 
-		ISOException.throwIt(PivApplet.SW_RESERVE_FAILURE);
+		reserveFailed();
 	}
 
 	public void
@@ -372,6 +421,32 @@ public class SGList implements Readable {
 		return (done);
 	}
 
+	/*
+	 * Copies everything left to read in src onto the end of this SGList,
+	 * into buffers of its own. Unlike readInto(), which only points at
+	 * src's buffers, the copy stays good whatever then happens to the
+	 * memory src was pointing at.
+	 *
+	 * We copy at most RAM_ALLOC_SIZE_2 bytes at a time, since each write
+	 * may need a new piece of buffer that big, and src can point at
+	 * (e.g.) a whole certificate at once.
+	 */
+	public void
+	copyFrom(final SGList src)
+	{
+		short len = src.available();
+		while (len > 0) {
+			short take = src.takeForRead(len);
+			if (take == (short)0)
+				break;
+			if (take > BaseBuffer.RAM_ALLOC_SIZE_2)
+				take = BaseBuffer.RAM_ALLOC_SIZE_2;
+			final Buffer buf = src.buffers[src.state[RPTR_BUF]];
+			write(buf.data(), buf.rpos(), take);
+			len -= take;
+			src.incRPtr(take);
+		}
+	}
 
 	public boolean
 	atEnd()
@@ -493,6 +568,12 @@ public class SGList implements Readable {
 			final Buffer buf = buffers[state[RPTR_BUF]];
 			Util.arrayCopyNonAtomic(buf.data(), buf.rpos(),
 			    dest, offset, take);
+//#if APPLET_INSTRUMENT
+			InsStats.copied(take);
+//#endif
+//#if APPLET_TRACE
+			Trace.copy(buf.data(), dest, take);
+//#endif
 			offset += take;
 			done += take;
 			incRPtr(take);
@@ -506,7 +587,9 @@ public class SGList implements Readable {
 		final byte[] buf = APDU.getCurrentAPDUBuffer();
 		final TransientBuffer buffer = buffers[state[RPTR_BUF]];
 		if (buffer.isApdu() && buffer.rpos() == offset) {
-			final short alreadyDone = buffer.remaining();
+			short alreadyDone = buffer.remaining();
+			if (alreadyDone > maxLen)
+				alreadyDone = maxLen;
 			offset += alreadyDone;
 			maxLen -= alreadyDone;
 			incRPtr(alreadyDone);
@@ -26,6 +26,7 @@ public class TlvWriter {
 	private short[] stackOff = null;
 	private short[] stackWPtr = null;
 	private byte[] tmp = null;
+	private short tmpOff = 0;
 
 	private SGList scratch = null;
 
@@ -41,9 +42,14 @@ public class TlvWriter {
 /*#if APPLET_LOW_TRANSIENT
 		tmp = new byte[5];
 		target = new Object[1];
+#else*/
+/*#if APPLET_ARENA
+		tmp = bufmgr.arena();
+		tmpOff = bufmgr.carve((short)5);
 #else*/
 		tmp = JCSystem.makeTransientByteArray((short)5,
 		    JCSystem.CLEAR_ON_DESELECT);
+//#endif
 		target = JCSystem.makeTransientObjectArray((short)1,
 		    JCSystem.CLEAR_ON_DESELECT);
 //#endif
@@ -157,6 +163,29 @@ public class TlvWriter {
 		}
 	}
 
+	/*
+	 * Writes a tag header with a known length straight into a byte array
+	 * rather than into our target SGList, for responses which are being
+	 * built up in-place. Returns the offset just after the header (always
+	 * sizeWithByteTag(len) - len bytes on from off).
+	 */
+	public static short
+	putTagRealLen(final byte[] buf, short off, final byte tag,
+	    final short len)
+	{
+		buf[off++] = tag;
+		if (len > (short)250) {
+			buf[off++] = (byte)0x82;
+			off = Util.setShort(buf, off, len);
+		} else if (len > (short)124) {
+			buf[off++] = (byte)0x81;
+			buf[off++] = (byte)len;
+		} else {
+			buf[off++] = (byte)len;
+		}
+		return (off);
+	}
+
 	/*
 	 * Optimised tag writing for when we have a known length in advance
 	 * for the tag.
@@ -164,36 +193,36 @@ public class TlvWriter {
 	public void
 	writeTagRealLen(final byte tag, final short len)
 	{
-		tmp[0] = tag;
+		tmp[tmpOff] = tag;
 		if (len > (short)250) {
-			tmp[1] = (byte)0x82;
-			Util.setShort(tmp, (short)2, len);
-			scratch.write(tmp, (short)0, (short)4);
+			tmp[(short)(tmpOff + 1)] = (byte)0x82;
+			Util.setShort(tmp, (short)(tmpOff + 2), len);
+			scratch.write(tmp, tmpOff, (short)4);
 		} else if (len > (short)124) {
-			tmp[1] = (byte)0x81;
-			tmp[2] = (byte)len;
-			scratch.write(tmp, (short)0, (short)3);
+			tmp[(short)(tmpOff + 1)] = (byte)0x81;
+			tmp[(short)(tmpOff + 2)] = (byte)len;
+			scratch.write(tmp, tmpOff, (short)3);
 		} else {
-			tmp[1] = (byte)len;
-			scratch.write(tmp, (short)0, (short)2);
+			tmp[(short)(tmpOff + 1)] = (byte)len;
+			scratch.write(tmp, tmpOff, (short)2);
 		}
 	}
 
 	public void
 	writeTagRealLen(short tag, short len)
 	{
-		Util.setShort(tmp, (short)0, tag);
+		Util.setShort(tmp, tmpOff, tag);
 		if (len > (short)250) {
-			tmp[2] = (byte)0x82;
-			Util.setShort(tmp, (short)3, len);
-			scratch.write(tmp, (short)0, (short)5);
+			tmp[(short)(tmpOff + 2)] = (byte)0x82;
+			Util.setShort(tmp, (short)(tmpOff + 3), len);
+			scratch.write(tmp, tmpOff, (short)5);
 		} else if (len > (short)124) {
-			tmp[2] = (byte)0x81;
-			tmp[3] = (byte)len;
-			scratch.write(tmp, (short)0, (short)4);
+			tmp[(short)(tmpOff + 2)] = (byte)0x81;
+			tmp[(short)(tmpOff + 3)] = (byte)len;
+			scratch.write(tmp, tmpOff, (short)4);
 		} else {
-			tmp[2] = (byte)len;
-			scratch.write(tmp, (short)0, (short)3);
+			tmp[(short)(tmpOff + 2)] = (byte)len;
+			scratch.write(tmp, tmpOff, (short)3);
 		}
 	}
 
@@ -0,0 +1,111 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+package net.cooperi.pivapplet;
+
+//#if APPLET_TRACE
+import javacard.framework.APDU;
+import javacard.framework.JCSystem;
+
+/*
+ * Trace counts what the buffer layer does in APPLET_TRACE builds: every copy
+ * made by an SGList (by the kind of memory on each side, and how many bytes),
+ * and every BufferManager alloc, realloc and free.
+ *
+ * This is meant for test builds only. Nothing on the card reads these
+ * counters: the benchmark harness (test/bench/PivBench.java) reads them
+ * straight out of the static arrays between APDUs when running the applet in
+ * jcardsim, and zeroes them itself before each one.
+ */
+public class Trace {
+	/* Kinds of memory */
+	public static final byte K_APDU = 0;
+	public static final byte K_TRANSIENT = 1;
+	public static final byte K_EEPROM = 2;
+	public static final byte K_MAX = K_EEPROM;
+
+	/* Indexes into allocStats */
+	public static final byte A_ALLOC = 0;
+	public static final byte A_ALLOC_BYTES = 1;
+	public static final byte A_ALLOC_EEPROM = 2;
+	public static final byte A_ALLOC_FAIL = 3;
+	public static final byte A_REALLOC = 4;
+	public static final byte A_REALLOC_FAIL = 5;
+	public static final byte A_FREE = 6;
+	public static final byte A_MAX = A_FREE;
+
+	/*
+	 * Number of copies and bytes copied, indexed by
+	 * (source kind * (K_MAX + 1)) + destination kind.
+	 */
+	public static short[] copyCount = null;
+	public static short[] copyBytes = null;
+	public static short[] allocStats = null;
+
+	public static void
+	init()
+	{
+		if (copyCount != null)
+			return;
+		final short nkinds = (short)((K_MAX + 1) * (K_MAX + 1));
+		copyCount = JCSystem.makeTransientShortArray(nkinds,
+		    JCSystem.CLEAR_ON_RESET);
+		copyBytes = JCSystem.makeTransientShortArray(nkinds,
+		    JCSystem.CLEAR_ON_RESET);
+		allocStats = JCSystem.makeTransientShortArray(
+		    (short)(A_MAX + 1), JCSystem.CLEAR_ON_RESET);
+	}
+
+	public static byte
+	kind(final byte[] buf)
+	{
+		if (buf == APDU.getCurrentAPDUBuffer())
+			return (K_APDU);
+		if (JCSystem.isTransient(buf) !=
+		    JCSystem.NOT_A_TRANSIENT_OBJECT)
+			return (K_TRANSIENT);
+		return (K_EEPROM);
+	}
+
+	public static void
+	copy(final byte[] src, final byte[] dst, final short len)
+	{
+		if (copyCount == null)
+			return;
+		final short idx = (short)(kind(src) * (K_MAX + 1) + kind(dst));
+		add(copyCount, idx, (short)1);
+		add(copyBytes, idx, len);
+	}
+
+	public static void
+	alloc(final BaseBuffer parent, final short len)
+	{
+		if (allocStats == null)
+			return;
+		add(allocStats, A_ALLOC, (short)1);
+		add(allocStats, A_ALLOC_BYTES, len);
+		if (!parent.isTransient)
+			add(allocStats, A_ALLOC_EEPROM, (short)1);
+	}
+
+	public static void
+	event(final byte stat)
+	{
+		if (allocStats == null)
+			return;
+		add(allocStats, stat, (short)1);
+	}
+
+	private static void
+	add(final short[] arr, final short idx, final short by)
+	{
+		final short v = (short)(arr[idx] + by);
+		arr[idx] = (v < arr[idx]) ? (short)0x7FFF : v;
+	}
+}
+//#endif
@@ -117,6 +117,9 @@ public class TransientBuffer implements Buffer {
 		state[ST_MASK] = mask;
 		state[ST_FLAGS] = FL_ALLOC;
 		reset();
+//#if APPLET_TRACE
+		Trace.alloc(parent, size);
+//#endif
 	}
 
 	public void
@@ -143,8 +146,12 @@ public class TransientBuffer implements Buffer {
 	free()
 	{
 		final BaseBuffer parent = (BaseBuffer)ptrs[PTR_PARENT];
-		if (parent != null)
+		if (parent != null) {
 			parent.clearMask(state[ST_MASK]);
+//#if APPLET_TRACE
+			Trace.event(Trace.A_FREE);
+//#endif
+		}
 
 		ptrs[PTR_PARENT] = null;
 		ptrs[PTR_BUF] = null;
@@ -0,0 +1,556 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/*
+ * Throughput benchmark for PivApplet, run in-process against jcardsim (see
+ * the "bench" target in build.xml).
+ *
+ * Each benchmark is an "op" made up of one or more APDUs (e.g. a GET DATA
+ * plus the GET RESPONSEs needed to fetch all of it). We time every APDU and
+ * every op with System.nanoTime() and write a JSON summary to stdout (or the
+ * file given with -o).
+ *
+ * The absolute numbers say very little about a real card, since jcardsim's
+ * crypto is just the JCE. What they are useful for is comparing runs of the
+ * same benchmark on the same machine, to catch changes in the cost of the
+ * buffer handling (SGList, TlvWriter, BufferManager) between commits.
+ *
+ * If the applet was built with APPLET_TRACE, we also read its Trace counters
+ * after every APDU and add a "trace" section to each result, with the
+ * number of copies and bytes copied between each kind of memory (APDU
+ * buffer, transient, EEPROM) and the number of allocations made. These are
+ * totals over all of the timed ops; divide by "ops" for per-op figures.
+ *
+ * Usage: PivBench [-n iterations] [-w warmup] [-o output.json]
+ */
+public class PivBench {
+	private static final String PIV_AID = "A000000308000010000100";
+	private static final byte[] DEFAULT_ADMIN_KEY = unhex(
+	    "010203040506070801020304050607080102030405060708");
+	private static final byte[] DEFAULT_PIN = unhex("313233343536FFFF");
+
+	private static final String[] KIND_NAMES = {
+	    "apdu", "transient", "eeprom"
+	};
+	private static final String[] ALLOC_NAMES = {
+	    "allocs", "alloc_bytes", "alloc_eeprom", "alloc_fail",
+	    "reallocs", "realloc_fail", "frees"
+	};
+
+	private final CardSimulator sim;
+	private final int iterations;
+	private final int warmup;
+	private final List<Result> results = new ArrayList<Result>();
+	private String appName = "";
+	private boolean extLen = false;
+
+	private Result cur = null;
+	private int opApdus = 0;
+
+	/* Trace's counter arrays, if the applet was built with APPLET_TRACE */
+	private short[] traceCopyCount = null;
+	private short[] traceCopyBytes = null;
+	private short[] traceAllocStats = null;
+
+	private static class Result {
+		String name;
+		int ops = 0;
+		int apdus = 0;
+		long[] opNanos;
+		long apduNanos = 0;
+		long apduMin = Long.MAX_VALUE;
+		long apduMax = 0;
+		int apdusPerOp = 0;
+		long[] copyCount;
+		long[] copyBytes;
+		long[] allocStats;
+	}
+
+	private interface Op {
+		void run() throws Exception;
+	}
+
+	public
+	PivBench(int iterations, int warmup) throws Exception
+	{
+		this.iterations = iterations;
+		this.warmup = warmup;
+		sim = new CardSimulator();
+		final AID aid = AIDUtil.create(PIV_AID);
+		sim.installApplet(aid, Class.forName(
+		    "net.cooperi.pivapplet.PivApplet").asSubclass(
+		    Applet.class));
+
+		try {
+			final Class<?> tr = Class.forName(
+			    "net.cooperi.pivapplet.Trace");
+			traceCopyCount = (short[])tr.getField(
+			    "copyCount").get(null);
+			traceCopyBytes = (short[])tr.getField(
+			    "copyBytes").get(null);
+			traceAllocStats = (short[])tr.getField(
+			    "allocStats").get(null);
+		} catch (ClassNotFoundException e) {
+			/* Not a trace build. */
+		}
+	}
+
+	public static void
+	main(String[] args) throws Exception
+	{
+		int n = 50;
+		int w = 5;
+		String out = null;
+
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-n"))
+				n = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-w"))
+				w = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-o"))
+				out = args[++i];
+			else
+				throw new IllegalArgumentException(args[i]);
+		}
+
+		final PivBench b = new PivBench(n, w);
+		b.runAll();
+
+		if (out == null) {
+			b.writeJson(System.out);
+		} else {
+			final OutputStream os = new FileOutputStream(out);
+			try {
+				b.writeJson(new PrintStream(os, true, "UTF-8"));
+			} finally {
+				os.close();
+			}
+		}
+	}
+
+	private void
+	runAll() throws Exception
+	{
+		final byte[] apt = findTag(select(), 0, (byte)0x61);
+		final byte[] name = findTag(apt, 0, (byte)0x50);
+		if (name != null)
+			appName = new String(name, "US-ASCII");
+		extLen = hasFlag('x');
+
+		bench("select", iterations, new Op() {
+			public void run() { select(); }
+		});
+
+		bench("get-data-chuid", iterations, new Op() {
+			public void run() {
+				xfer(0xCB, 0x3F, 0xFF, unhex("5C035FC102"),
+				    0x9000);
+			}
+		});
+
+		bench("get-data-discovery", iterations, new Op() {
+			public void run() {
+				xfer(0xCB, 0x3F, 0xFF, unhex("5C017E"), 0x9000);
+			}
+		});
+
+		bench("ga-9b-3des-auth", iterations, new Op() {
+			public void run() throws Exception { adminAuth(); }
+		});
+
+		adminAuth();
+		putCert2k();
+
+		bench("get-data-cert-2k", iterations, new Op() {
+			public void run() {
+				xfer(0xCB, 0x3F, 0xFF, unhex("5C035FC105"),
+				    0x9000);
+			}
+		});
+
+		if (extLen) {
+			bench("get-data-cert-2k-extle", iterations, new Op() {
+				public void run() {
+					xferExt(0xCB, 0x3F, 0xFF,
+					    unhex("5C035FC105"), 0x9000);
+				}
+			});
+		}
+
+		final int keygens = Math.max(1, iterations / 10);
+
+		bench("gen-9a-rsa2048", keygens, new Op() {
+			public void run() {
+				xfer(0x47, 0x00, 0x9A, unhex("AC03800107"),
+				    0x9000);
+			}
+		});
+		verifyPin();
+		final byte[] blk = new byte[256];
+		blk[1] = 0x01;
+		Arrays.fill(blk, 2, 202, (byte)0xFF);
+		System.arraycopy(sha("SHA-256"), 0, blk, 224, 32);
+		final byte[] rsaReq = concat(unhex("7C820106820081820100"),
+		    blk);
+		bench("ga-9a-rsa2048-sign", iterations, new Op() {
+			public void run() {
+				xfer(0x87, 0x07, 0x9A, rsaReq, 0x9000);
+			}
+		});
+
+		bench("gen-9e-p256", keygens * 4, new Op() {
+			public void run() {
+				xfer(0x47, 0x00, 0x9E, unhex("AC03800111"),
+				    0x9000);
+			}
+		});
+		final byte[] p256Req = concat(unhex("7C2482008120"),
+		    sha("SHA-256"));
+		bench("ga-9e-p256-sign", iterations, new Op() {
+			public void run() {
+				xfer(0x87, 0x11, 0x9E, p256Req, 0x9000);
+			}
+		});
+
+		if (hasFlag('e')) {
+			bench("gen-9e-p384", keygens * 4, new Op() {
+				public void run() {
+					xfer(0x47, 0x00, 0x9E,
+					    unhex("AC03800114"), 0x9000);
+				}
+			});
+			final byte[] p384Req = concat(unhex("7C3482008130"),
+			    sha("SHA-384"));
+			bench("ga-9e-p384-sign", iterations, new Op() {
+				public void run() {
+					xfer(0x87, 0x14, 0x9E, p384Req,
+					    0x9000);
+				}
+			});
+		}
+	}
+
+	/* Checks the build flag letters on the end of the applet label. */
+	private boolean
+	hasFlag(char flag)
+	{
+		final int slash = appName.indexOf('/');
+		return (slash >= 0 && appName.indexOf(flag, slash) >= 0);
+	}
+
+	private void
+	bench(String name, int count, Op op) throws Exception
+	{
+		for (int i = 0; i < warmup; ++i)
+			op.run();
+
+		final Result r = new Result();
+		r.name = name;
+		r.opNanos = new long[count];
+		if (traceCopyCount != null) {
+			r.copyCount = new long[traceCopyCount.length];
+			r.copyBytes = new long[traceCopyBytes.length];
+			r.allocStats = new long[traceAllocStats.length];
+		}
+		cur = r;
+		for (int i = 0; i < count; ++i) {
+			opApdus = 0;
+			final long start = System.nanoTime();
+			op.run();
+			r.opNanos[i] = System.nanoTime() - start;
+			r.ops++;
+			r.apdusPerOp = Math.max(r.apdusPerOp, opApdus);
+		}
+		cur = null;
+		results.add(r);
+	}
+
+	private ResponseAPDU
+	transmit(CommandAPDU cmd)
+	{
+		if (traceCopyCount != null) {
+			Arrays.fill(traceCopyCount, (short)0);
+			Arrays.fill(traceCopyBytes, (short)0);
+			Arrays.fill(traceAllocStats, (short)0);
+		}
+		final long start = System.nanoTime();
+		final ResponseAPDU r = sim.transmitCommand(cmd);
+		final long t = System.nanoTime() - start;
+		if (cur != null && traceCopyCount != null) {
+			for (int i = 0; i < traceCopyCount.length; ++i) {
+				cur.copyCount[i] += traceCopyCount[i];
+				cur.copyBytes[i] += traceCopyBytes[i];
+			}
+			for (int i = 0; i < traceAllocStats.length; ++i)
+				cur.allocStats[i] += traceAllocStats[i];
+		}
+		if (cur != null) {
+			cur.apdus++;
+			cur.apduNanos += t;
+			if (t < cur.apduMin)
+				cur.apduMin = t;
+			if (t > cur.apduMax)
+				cur.apduMax = t;
+			opApdus++;
+		}
+		return (r);
+	}
+
+	/*
+	 * Sends a command the way a short-APDU host would: chained 255-byte
+	 * pieces in, then GET RESPONSE until the card stops saying 61xx.
+	 */
+	private byte[]
+	xfer(int ins, int p1, int p2, byte[] data, int expectSw)
+	{
+		int off = 0;
+		ResponseAPDU r;
+
+		while (data.length - off > 255) {
+			r = transmit(new CommandAPDU(0x10, ins, p1, p2,
+			    Arrays.copyOfRange(data, off, off + 255)));
+			checkSw(r, 0x9000);
+			off += 255;
+		}
+		r = transmit(new CommandAPDU(0x00, ins, p1, p2,
+		    Arrays.copyOfRange(data, off, data.length), 256));
+		return (collect(r, expectSw));
+	}
+
+	private byte[]
+	xferExt(int ins, int p1, int p2, byte[] data, int expectSw)
+	{
+		final ResponseAPDU r = transmit(new CommandAPDU(0x00, ins, p1,
+		    p2, data, 32767));
+		return (collect(r, expectSw));
+	}
+
+	private byte[]
+	collect(ResponseAPDU r, int expectSw)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(r.getData(), 0, r.getData().length);
+		while (r.getSW1() == 0x61) {
+			final int le = (r.getSW2() == 0) ? 256 : r.getSW2();
+			r = transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00,
+			    le));
+			out.write(r.getData(), 0, r.getData().length);
+		}
+		checkSw(r, expectSw);
+		return (out.toByteArray());
+	}
+
+	private static void
+	checkSw(ResponseAPDU r, int expectSw)
+	{
+		if (r.getSW() != expectSw) {
+			throw (new IllegalStateException(String.format(
+			    "expected SW %04X, got %04X", expectSw,
+			    r.getSW())));
+		}
+	}
+
+	private byte[]
+	select()
+	{
+		return (xfer(0xA4, 0x04, 0x00, unhex(PIV_AID), 0x9000));
+	}
+
+	private void
+	verifyPin()
+	{
+		xfer(0x20, 0x00, 0x80, DEFAULT_PIN, 0x9000);
+	}
+
+	private void
+	adminAuth() throws Exception
+	{
+		final byte[] ch = xfer(0x87, 0x03, 0x9B, unhex("7C028100"),
+		    0x9000);
+		final Cipher des = Cipher.getInstance("DESede/ECB/NoPadding");
+		des.init(Cipher.ENCRYPT_MODE,
+		    new SecretKeySpec(DEFAULT_ADMIN_KEY, "DESede"));
+		final byte[] resp = des.doFinal(Arrays.copyOfRange(ch, 4, 12));
+		xfer(0x87, 0x03, 0x9B, concat(unhex("7C0A8208"), resp), 0x9000);
+	}
+
+	/* Stores a 2 KB dummy certificate in the 9A slot's object (5FC105). */
+	private void
+	putCert2k()
+	{
+		final byte[] cert = new byte[2048];
+		for (int i = 0; i < cert.length; ++i)
+			cert[i] = (byte)i;
+		final byte[] obj = concat(unhex("708208 00".replace(" ", "")),
+		    cert, unhex("710100FE00"));
+		final byte[] cmd = concat(unhex("5C035FC10553"),
+		    new byte[] { (byte)0x82, (byte)(obj.length >> 8),
+		    (byte)obj.length }, obj);
+		xfer(0xDB, 0x3F, 0xFF, cmd, 0x9000);
+	}
+
+	private void
+	writeJson(PrintStream ps)
+	{
+		ps.println("{");
+		ps.println("  \"applet\": \"" + appName + "\",");
+		ps.println("  \"iterations\": " + iterations + ",");
+		ps.println("  \"warmup\": " + warmup + ",");
+		ps.println("  \"results\": [");
+		for (int i = 0; i < results.size(); ++i) {
+			final Result r = results.get(i);
+			final long[] s = r.opNanos.clone();
+			Arrays.sort(s);
+			long total = 0;
+			for (long t : s)
+				total += t;
+			ps.println("    {");
+			ps.println("      \"name\": \"" + r.name + "\",");
+			ps.println("      \"ops\": " + r.ops + ",");
+			ps.println("      \"apdus\": " + r.apdus + ",");
+			ps.println("      \"apdus_per_op\": " +
+			    r.apdusPerOp + ",");
+			ps.println("      \"ops_per_sec\": " +
+			    fmt(r.ops * 1e9 / total) + ",");
+			ps.println("      \"op_us\": { \"mean\": " +
+			    fmt(total / 1e3 / r.ops) +
+			    ", \"min\": " + fmt(s[0] / 1e3) +
+			    ", \"p50\": " + fmt(s[s.length / 2] / 1e3) +
+			    ", \"p95\": " +
+			    fmt(s[(s.length * 95) / 100] / 1e3) +
+			    ", \"max\": " + fmt(s[s.length - 1] / 1e3) + " },");
+			ps.println("      \"apdu_us\": { \"mean\": " +
+			    fmt(r.apduNanos / 1e3 / r.apdus) +
+			    ", \"min\": " + fmt(r.apduMin / 1e3) +
+			    ", \"max\": " + fmt(r.apduMax / 1e3) + " }" +
+			    ((r.copyCount != null) ? "," : ""));
+			if (r.copyCount != null)
+				writeTrace(ps, r);
+			ps.println((i + 1 < results.size()) ? "    }," :
+			    "    }");
+		}
+		ps.println("  ]");
+		ps.println("}");
+	}
+
+	private static void
+	writeTrace(PrintStream ps, Result r)
+	{
+		final int nkinds = KIND_NAMES.length;
+		long total = 0;
+
+		ps.println("      \"trace\": {");
+		ps.print("        \"copies\": [");
+		boolean first = true;
+		for (int i = 0; i < r.copyCount.length; ++i) {
+			if (r.copyCount[i] == 0)
+				continue;
+			total += r.copyBytes[i];
+			ps.print((first ? "" : ",") +
+			    "\n          { \"from\": \"" +
+			    KIND_NAMES[i / nkinds] + "\", \"to\": \"" +
+			    KIND_NAMES[i % nkinds] + "\", \"count\": " +
+			    r.copyCount[i] + ", \"bytes\": " + r.copyBytes[i] +
+			    " }");
+			first = false;
+		}
+		ps.println(first ? "]," : "\n        ],");
+		ps.println("        \"bytes_copied_per_op\": " +
+		    fmt((double)total / r.ops) + ",");
+		for (int i = 0; i < ALLOC_NAMES.length; ++i) {
+			ps.println("        \"" + ALLOC_NAMES[i] + "\": " +
+			    r.allocStats[i] +
+			    ((i + 1 < ALLOC_NAMES.length) ? "," : ""));
+		}
+		ps.println("      }");
+	}
+
+	private static String
+	fmt(double v)
+	{
+		return (String.format(java.util.Locale.ROOT, "%.1f", v));
+	}
+
+	/*
+	 * Finds a tag inside a BER-TLV structure, starting at "off" (used to
+	 * find the application label inside the SELECT response).
+	 */
+	private static byte[]
+	findTag(byte[] buf, int off, byte tag)
+	{
+		while (off + 1 < buf.length) {
+			final byte t = buf[off++];
+			if ((t & 0x1F) == 0x1F)
+				off++;
+			int len = buf[off++] & 0xFF;
+			if (len == 0x81) {
+				len = buf[off++] & 0xFF;
+			} else if (len == 0x82) {
+				len = ((buf[off] & 0xFF) << 8) |
+				    (buf[off + 1] & 0xFF);
+				off += 2;
+			}
+			if (t == tag)
+				return (Arrays.copyOfRange(buf, off,
+				    off + len));
+			off += len;
+		}
+		return (null);
+	}
+
+	private static byte[]
+	sha(String alg)
+	{
+		try {
+			return (MessageDigest.getInstance(alg).digest(
+			    "PivBench".getBytes("US-ASCII")));
+		} catch (Exception e) {
+			throw (new IllegalStateException(e));
+		}
+	}
+
+	private static byte[]
+	concat(byte[]... parts)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] p : parts)
+			out.write(p, 0, p.length);
+		return (out.toByteArray());
+	}
+
+	private static byte[]
+	unhex(String s)
+	{
+		final byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; ++i) {
+			b[i] = (byte)Integer.parseInt(
+			    s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return (b);
+	}
+}
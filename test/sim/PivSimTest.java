@@ -0,0 +1,890 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2026, agent <agent@local>
+ */
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/*
+ * Tests for PivApplet run in-process against jcardsim (see the "simtest"
+ * target in build.xml). The test/simulator-tests script covers the everyday
+ * commands through a reader, using the usual host tools; these are for the
+ * corners of the protocol those tools don't reach, and for features which
+ * are only in some builds.
+ *
+ * Tests of those features look for the build flag letter of the feature
+ * they're about on the end of the applet label, and are skipped if it isn't
+ * there. Any failure throws, so the JVM exits non-zero.
+ *
+ * Usage: PivSimTest
+ */
+public class PivSimTest {
+	private static final String PIV_AID = "A000000308000010000100";
+	private static final byte[] DEFAULT_ADMIN_KEY = unhex(
+	    "010203040506070801020304050607080102030405060708");
+	private static final byte[] DEFAULT_PIN = unhex("313233343536FFFF");
+	/* As in PivApplet */
+	private static final int GA_BATCH_MAX = 64;
+
+	private final CardSimulator sim;
+	private String appName = "";
+	private int passed = 0;
+	private int skipped = 0;
+
+	public
+	PivSimTest() throws Exception
+	{
+		sim = new CardSimulator();
+		final AID aid = AIDUtil.create(PIV_AID);
+		sim.installApplet(aid, Class.forName(
+		    "net.cooperi.pivapplet.PivApplet").asSubclass(
+		    Applet.class));
+	}
+
+	public static void
+	main(String[] args) throws Exception
+	{
+		final PivSimTest t = new PivSimTest();
+		t.runAll();
+		System.out.println(t.appName + ": " + t.passed + " passed, " +
+		    t.skipped + " skipped");
+	}
+
+	private void
+	runAll() throws Exception
+	{
+		final byte[] apt = findTag(select(), 0, (byte)0x61);
+		final byte[] name = findTag(apt, 0, (byte)0x50);
+		if (name != null)
+			appName = new String(name, "US-ASCII");
+
+		testPutDataChains();
+
+		if (hasFlag('E'))
+			testEcBatch();
+		else
+			skip("ec-batch");
+		if (hasFlag('x'))
+			testExtendedLe();
+		else
+			skip("extended-le");
+		if (hasFlag('C'))
+			testCompressCerts();
+		else
+			skip("compress-certs");
+		if (hasFlag('O'))
+			testObjectStore();
+		else
+			skip("object-store");
+		if (hasFlag('G')) {
+			testResumeAttestation();
+			testResumeCurrentByKey();
+		} else {
+			skip("resume-attestation");
+			skip("resume-current-by-key");
+		}
+	}
+
+	/*
+	 * An attestation which was only partly read when other commands came
+	 * along (ones which build their responses in the same buffers it was
+	 * made in) comes back intact with GET RESPONSE P1P2 = F9 9A, and still
+	 * verifies against the F9 key.
+	 */
+	private void
+	testResumeAttestation() throws Exception
+	{
+		adminAuth();
+		final byte[] pub9a = xfer(0x47, 0x00, 0x9A, unhex("AC03800111"),
+		    256, 0x9000);
+		xfer(0x47, 0x00, 0x9E, unhex("AC03800111"), 256, 0x9000);
+		xfer(0x20, 0x00, 0x80, DEFAULT_PIN, -1, 0x9000);
+		final X509Certificate f9 = f9Cert();
+
+		final byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+		    "PivSimTest".getBytes("US-ASCII"));
+		final Runnable[] others = {
+			new Runnable() { public void run() {
+				/* Another attestation */
+				xfer(0xF9, 0x9E, 0x00, null, 256, 0x9000);
+			} },
+			new Runnable() { public void run() {
+				/* GET METADATA */
+				xfer(0xF7, 0x00, 0x9A, null, 256, 0x9000);
+			} },
+			new Runnable() { public void run() {
+				/* A signature, read with a short Le */
+				xfer(0x87, 0x11, 0x9A,
+				    concat(unhex("7C2482008120"), hash), 0x20,
+				    0x9000);
+			} },
+			new Runnable() { public void run() {
+				/* GET DATA */
+				xfer(0xCB, 0x3F, 0xFF, unhex("5C035FC102"),
+				    256, 0x9000);
+			} },
+		};
+
+		for (int i = 0; i < others.length; ++i) {
+			ResponseAPDU r = transmit(new CommandAPDU(0x00, 0xF9,
+			    0x9A, 0x00, 0x40));
+			check(r.getSW1() == 0x61 && r.getData().length == 0x40,
+			    "first part of attestation");
+			final ByteArrayOutputStream out =
+			    new ByteArrayOutputStream();
+			out.write(r.getData(), 0, r.getData().length);
+
+			others[i].run();
+
+			r = transmit(new CommandAPDU(0x00, 0xC0, 0xF9, 0x9A,
+			    256));
+			final byte[] rest = collect(r, 0x9000);
+			out.write(rest, 0, rest.length);
+
+			final X509Certificate cert = parseCert(
+			    out.toByteArray());
+			cert.verify(f9.getPublicKey());
+			checkEcPoint(cert, pub9a);
+		}
+		pass("resume-attestation");
+	}
+
+	/*
+	 * GET RESPONSE with the key of the response which is still being sent
+	 * (and nothing parked) just carries on with it.
+	 */
+	private void
+	testResumeCurrentByKey() throws Exception
+	{
+		final X509Certificate f9 = f9Cert();
+		ResponseAPDU r = transmit(new CommandAPDU(0x00, 0xF9, 0x9A,
+		    0x00, 0x40));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(r.getData(), 0, r.getData().length);
+		while (r.getSW1() == 0x61) {
+			r = transmit(new CommandAPDU(0x00, 0xC0, 0xF9, 0x9A,
+			    0x40));
+			out.write(r.getData(), 0, r.getData().length);
+		}
+		checkSw(r, 0x9000);
+		parseCert(out.toByteArray()).verify(f9.getPublicKey());
+		pass("resume-current-by-key");
+	}
+
+	/*
+	 * Chained PUT DATA commands are written straight into the object as
+	 * they come in, when the 5C and 53 headers are all in the first one.
+	 * A chain which comes to more or less than the 53 length says fails
+	 * with 6700 and leaves the old object there, as does one which is cut
+	 * off by another command. One which splits the headers across
+	 * commands is collected up and written at the end instead.
+	 */
+	private void
+	testPutDataChains() throws Exception
+	{
+		adminAuth();
+		final String tag = "5FC10A";
+		final byte[] old = certObject(filler(600, 30));
+		putObject(tag, old);
+
+		final byte[] val = certObject(filler(600, 31));
+		final byte[] data = concat(unhex("5C03" + tag), tlv(0x53, val));
+
+		/* Short by 10 bytes */
+		check(putChain(Arrays.copyOf(data, data.length - 10), 255) ==
+		    0x6700, "short chain gets 6700");
+		check(Arrays.equals(getObject(tag), old), "old object kept");
+
+		/* 10 bytes over, all in the last command */
+		check(putChain(concat(data, new byte[10]), 255) == 0x6700,
+		    "long chain gets 6700");
+		check(Arrays.equals(getObject(tag), old), "old object kept");
+
+		/* 300 bytes over, so the chain fails part way through */
+		check(putChain(concat(data, new byte[300]), 255) == 0x6700,
+		    "long chain gets 6700 part way");
+		check(Arrays.equals(getObject(tag), old), "old object kept");
+
+		/*
+		 * Headers split across the first two commands: in the
+		 * middle of the 5C tag, and in the middle of the 53 length.
+		 */
+		final int[] splits = { 4, 8 };
+		for (int i = 0; i < splits.length; ++i) {
+			final byte[] v = certObject(filler(600, 32 + i));
+			final byte[] d = concat(unhex("5C03" + tag),
+			    tlv(0x53, v));
+			check(putChain(d, splits[i], 255) == 0x9000,
+			    "split header");
+			check(Arrays.equals(getObject(tag), v), "split header");
+		}
+		final byte[] cur = getObject(tag);
+
+		/*
+		 * Cut off by a GET DATA (which still sees the old object)
+		 * after the first command. The rest of the chain then can't
+		 * finish the write off.
+		 */
+		ResponseAPDU r = transmit(new CommandAPDU(0x10, 0xDB, 0x3F,
+		    0xFF, Arrays.copyOf(data, 255)));
+		checkSw(r, 0x9000);
+		check(Arrays.equals(getObject(tag), cur), "old object kept");
+		check(putChain(Arrays.copyOfRange(data, 255, data.length),
+		    255) != 0x9000, "rest of a cut off chain fails");
+		check(Arrays.equals(getObject(tag), cur), "old object kept");
+
+		/* And a whole chain still works after all that. */
+		check(putChain(data, 255) == 0x9000, "whole chain");
+		check(Arrays.equals(getObject(tag), val), "new object");
+		pass("put-data-chains");
+	}
+
+	/*
+	 * A GENERAL AUTHENTICATE with several 81 (challenge) tags gets an 82
+	 * back for each, in the same order, each one a signature of its hash
+	 * by the slot key. No more than GA_BATCH_MAX go in one command, and a
+	 * PIN-always slot (9C) signs one batch per VERIFY.
+	 */
+	private void
+	testEcBatch() throws Exception
+	{
+		adminAuth();
+		final PublicKey pub9a = ecPublicKey(xfer(0x47, 0x00, 0x9A,
+		    unhex("AC03800111"), 256, 0x9000));
+		final PublicKey pub9c = ecPublicKey(xfer(0x47, 0x00, 0x9C,
+		    unhex("AC03800111"), 256, 0x9000));
+		xfer(0x20, 0x00, 0x80, DEFAULT_PIN, -1, 0x9000);
+
+		/*
+		 * Up to GA_BATCH_MAX can go in, but in the default build the
+		 * signatures for not many more than 12 fit in the buffers.
+		 */
+		final int[] counts = { 2, 7, 12 };
+		for (int i = 0; i < counts.length; ++i)
+			signBatch(0x9A, pub9a, counts[i], i);
+
+		final byte[][] msgs = batchMessages(GA_BATCH_MAX + 1, 0);
+		xfer(0x87, 0x11, 0x9A, batchCommand(msgs), 256, 0x6700);
+
+		/* PIN-always: one batch, then nothing until the next VERIFY */
+		xfer(0x20, 0x00, 0x80, DEFAULT_PIN, -1, 0x9000);
+		signBatch(0x9C, pub9c, 5, 10);
+		xfer(0x87, 0x11, 0x9C, batchCommand(batchMessages(5, 11)), 256,
+		    0x6982);
+		xfer(0x20, 0x00, 0x80, DEFAULT_PIN, -1, 0x9000);
+		signBatch(0x9C, pub9c, 5, 12);
+		pass("ec-batch");
+	}
+
+	/*
+	 * Signs n messages in one batch with the given slot, and checks each
+	 * 82 in the response against its message.
+	 */
+	private void
+	signBatch(int slot, PublicKey pub, int n, int seed) throws Exception
+	{
+		final byte[][] msgs = batchMessages(n, seed);
+		final byte[] resp = xfer(0x87, 0x11, slot, batchCommand(msgs),
+		    256, 0x9000);
+		check(resp.length > 0 && resp[0] == (byte)0x7C, "7C tag");
+		final List<byte[]> sigs = allTags(findTag(resp, 0, (byte)0x7C),
+		    (byte)0x82);
+		check(sigs.size() == n, "one 82 per 81");
+		final Signature v = Signature.getInstance("SHA256withECDSA");
+		for (int i = 0; i < n; ++i) {
+			v.initVerify(pub);
+			v.update(msgs[i]);
+			check(v.verify(sigs.get(i)), "signature " + i);
+		}
+	}
+
+	private static byte[][]
+	batchMessages(int n, int seed)
+	{
+		final byte[][] msgs = new byte[n][];
+		for (int i = 0; i < n; ++i)
+			msgs[i] = filler(40, seed * 1000 + i);
+		return (msgs);
+	}
+
+	/* 7C { 82 00, 81 { SHA-256(msg) } for each msg } */
+	private static byte[]
+	batchCommand(byte[][] msgs) throws Exception
+	{
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x82);
+		out.write(0x00);
+		for (int i = 0; i < msgs.length; ++i) {
+			final byte[] c = tlv(0x81, md.digest(msgs[i]));
+			out.write(c, 0, c.length);
+		}
+		return (tlv(0x7C, out.toByteArray()));
+	}
+
+	/*
+	 * Sends data as a chain of PUT DATA commands, the first one first
+	 * bytes long and the rest up to size. Stops at the first command
+	 * which fails, and returns its SW (or that of the last one).
+	 */
+	private int
+	putChain(byte[] data, int first, int size)
+	{
+		int off = 0;
+		int take = first;
+		while (true) {
+			take = Math.min(take, data.length - off);
+			final boolean last = (off + take == data.length);
+			final ResponseAPDU r = transmit(new CommandAPDU(
+			    last ? 0x00 : 0x10, 0xDB, 0x3F, 0xFF,
+			    Arrays.copyOfRange(data, off, off + take)));
+			off += take;
+			if (last || r.getSW() != 0x9000)
+				return (r.getSW());
+			take = size;
+		}
+	}
+
+	private int
+	putChain(byte[] data, int size)
+	{
+		return (putChain(data, size, size));
+	}
+
+	/*
+	 * GET DATA with an extended Le of 0000 (or anything from 8000 up)
+	 * gets the whole object back in one response.
+	 */
+	private void
+	testExtendedLe() throws Exception
+	{
+		adminAuth();
+		final byte[] obj = certObject(filler(2000, 1));
+		putObject("5FC105", obj);
+		final int[] les = { 65536, 65535, 0x8000 };
+		for (int i = 0; i < les.length; ++i) {
+			final ResponseAPDU r = transmit(new CommandAPDU(0x00,
+			    0xCB, 0x3F, 0xFF, unhex("5C035FC105"), les[i]));
+			checkSw(r, 0x9000);
+			check(Arrays.equals(r.getData(), tlv(0x53, obj)),
+			    "whole object in one response");
+		}
+		/* And for a command with no data (GET METADATA) */
+		final ResponseAPDU r = transmit(new CommandAPDU(0x00, 0xF7,
+		    0x00, 0x9B, 65536));
+		checkSw(r, 0x9000);
+		check(r.getData().length > 0, "metadata");
+		pass("extended-le");
+	}
+
+	/*
+	 * Certificates written with PUT DATA come back gzipped (with CertInfo
+	 * 01) if that makes them smaller, and otherwise just as they were
+	 * written. Both the certificate lengths and the compressed lengths
+	 * go either side of where the 70 tag needs a longer length (0x80
+	 * and 0x100).
+	 */
+	private void
+	testCompressCerts() throws Exception
+	{
+		adminAuth();
+		final int[] lens = { 0x7F, 0x80, 0xFF, 0x100, 2000 };
+		final Set<Integer> gzLens = new HashSet<Integer>();
+		for (int i = 0; i < lens.length; ++i) {
+			checkCompressed(new byte[lens[i]], gzLens);
+			checkUncompressed(filler(lens[i], i));
+		}
+		/*
+		 * Some random bytes then a run of zeros compresses to about
+		 * the length of the random part. These ranges (with these
+		 * seeds) take in compressed lengths of 7F, 80, FF and 100.
+		 */
+		for (int r = 88; r <= 108; ++r) {
+			checkCompressed(concat(filler(r, r), new byte[400]),
+			    gzLens);
+		}
+		for (int r = 210; r <= 230; ++r) {
+			checkCompressed(concat(filler(r, r), new byte[400]),
+			    gzLens);
+		}
+		check(gzLens.contains(0x7F) && gzLens.contains(0x80) &&
+		    gzLens.contains(0xFF) && gzLens.contains(0x100),
+		    "compressed lengths either side of 0x80 and 0x100");
+		pass("compress-certs");
+	}
+
+	private void
+	checkCompressed(byte[] cert, Set<Integer> gzLens) throws Exception
+	{
+		putObject("5FC105", certObject(cert));
+		final byte[] obj = getObject("5FC105");
+		final byte[] gz = findTag(obj, 0, (byte)0x70);
+		check(gz != null && gz.length < cert.length, "compressed");
+		check(Arrays.equals(findTag(obj, 0, (byte)0x71), unhex("01")),
+		    "CertInfo 01");
+		final byte[] gz70 = tlv(0x70, gz);
+		check(Arrays.equals(Arrays.copyOfRange(obj, 0, gz70.length),
+		    gz70), "70 header");
+		check(Arrays.equals(gunzip(gz), cert), "gunzips to the cert");
+		check(Arrays.equals(Arrays.copyOfRange(obj, obj.length - 2,
+		    obj.length), unhex("FE00")), "rest of the object");
+		gzLens.add(gz.length);
+	}
+
+	private void
+	checkUncompressed(byte[] cert) throws Exception
+	{
+		final byte[] val = certObject(cert);
+		putObject("5FC105", val);
+		check(Arrays.equals(getObject("5FC105"), val),
+		    "incompressible cert unchanged");
+	}
+
+	/*
+	 * Rewriting objects leaves dead space in the ObjectStore, which
+	 * INS_STORE (E2) reports and gets back by compacting, without any
+	 * object (ours, or the ones made at install time) changing. Once the
+	 * store is full, PUT DATA fails with 6A84 and leaves the old object
+	 * as it was.
+	 */
+	private void
+	testObjectStore() throws Exception
+	{
+		adminAuth();
+		final String[] tags = {
+			"5FC105", "5FC10A", "5FC10B", "5FC101"
+		};
+		final String[] others = { "5FC102", "5FC107" };
+		final byte[][] vals = new byte[tags.length][];
+		final byte[][] otherVals = new byte[others.length][];
+		for (int i = 0; i < others.length; ++i)
+			otherVals[i] = getObject(others[i]);
+		/*
+		 * Start from a compacted store, so nothing below needs
+		 * compacting until we want it to (and the dead space adds up).
+		 */
+		storeStatus(0x01);
+
+		/* Random, so they stay the same in PIV_COMPRESS_CERTS builds */
+		final int[] firstLens = { 300, 1200, 50, 800 };
+		final int[] nextLens = { 500, 100, 900, 800 };
+		for (int i = 0; i < tags.length; ++i) {
+			vals[i] = certObject(filler(firstLens[i], i));
+			putObject(tags[i], vals[i]);
+		}
+		final int[] st1 = storeStatus(0x00);
+		final int total = st1[0] + st1[1] + st1[2];
+
+		int grew = 0, dead = 0;
+		for (int i = 0; i < tags.length; ++i) {
+			final byte[] v = certObject(filler(nextLens[i],
+			    10 + i));
+			grew += v.length - vals[i].length;
+			dead += vals[i].length;
+			vals[i] = v;
+			putObject(tags[i], v);
+		}
+		final int[] st2 = storeStatus(0x00);
+		check(st2[0] == st1[0] + grew, "used after rewrites");
+		check(st2[1] == st1[1] + dead, "dead after rewrites");
+		check(st2[0] + st2[1] + st2[2] == total, "store size");
+
+		final int[] st3 = storeStatus(0x01);
+		check(st3[0] == st2[0] && st3[1] == 0 &&
+		    st3[2] == total - st3[0], "figures after compacting");
+		checkObjects(tags, vals);
+		checkObjects(others, otherVals);
+
+		/*
+		 * Fill it up to a little under what's free, then try to
+		 * rewrite something bigger than what's left (plus the dead
+		 * space the fill-up left behind). The old version of an object
+		 * stays until the new one is written, so neither can use its
+		 * space.
+		 */
+		final byte[] big = certObject(filler(st3[2] - 200, 20));
+		putObject(tags[3], big);
+		final int oldLen = vals[3].length;
+		vals[3] = big;
+		final int[] st4 = storeStatus(0x00);
+		check(st4[0] == st3[0] - oldLen + big.length &&
+		    st4[1] + st4[2] < 250 + oldLen, "store nearly full");
+		putObject(tags[0], certObject(filler(st4[1] + st4[2] + 100,
+		    21)), 0x6A84);
+		final int[] st5 = storeStatus(0x00);
+		check(st5[0] == st4[0], "used after failed write");
+		checkObjects(tags, vals);
+		checkObjects(others, otherVals);
+
+		/* Something which only fits once the store is compacted */
+		vals[0] = certObject(filler(st5[1] + st5[2] - 50, 22));
+		putObject(tags[0], vals[0]);
+		checkObjects(tags, vals);
+		checkObjects(others, otherVals);
+		pass("object-store");
+	}
+
+	/* INS_STORE: returns { used, dead, free } */
+	private int[]
+	storeStatus(int p1)
+	{
+		final byte[] r = xfer(0xE2, p1, 0x00, null, 6, 0x9000);
+		check(r.length == 6, "store status length");
+		final int[] st = new int[3];
+		for (int i = 0; i < 3; ++i)
+			st[i] = ((r[2 * i] & 0xFF) << 8) |
+			    (r[2 * i + 1] & 0xFF);
+		return (st);
+	}
+
+	private void
+	checkObjects(String[] tags, byte[][] vals)
+	{
+		for (int i = 0; i < tags.length; ++i) {
+			check(Arrays.equals(getObject(tags[i]), vals[i]),
+			    "object " + tags[i]);
+		}
+	}
+
+	private void
+	pass(String name)
+	{
+		System.out.println("pass: " + name);
+		passed++;
+	}
+
+	private void
+	skip(String name)
+	{
+		System.out.println("skip: " + name);
+		skipped++;
+	}
+
+	private static void
+	check(boolean ok, String what)
+	{
+		if (!ok)
+			throw (new IllegalStateException("failed: " + what));
+	}
+
+	/* Checks the build flag letters on the end of the applet label. */
+	private boolean
+	hasFlag(char flag)
+	{
+		final int slash = appName.indexOf('/');
+		return (slash >= 0 && appName.indexOf(flag, slash) >= 0);
+	}
+
+	private ResponseAPDU
+	transmit(CommandAPDU cmd)
+	{
+		return (sim.transmitCommand(cmd));
+	}
+
+	/*
+	 * Sends a command the way a short-APDU host would: chained 255-byte
+	 * pieces in, then GET RESPONSE until the card stops saying 61xx.
+	 */
+	private byte[]
+	xfer(int ins, int p1, int p2, byte[] data, int le, int expectSw)
+	{
+		int off = 0;
+		ResponseAPDU r;
+
+		if (data == null) {
+			r = transmit(new CommandAPDU(0x00, ins, p1, p2, le));
+			return (collect(r, expectSw));
+		}
+		while (data.length - off > 255) {
+			r = transmit(new CommandAPDU(0x10, ins, p1, p2,
+			    Arrays.copyOfRange(data, off, off + 255)));
+			if (r.getSW() != 0x9000) {
+				checkSw(r, expectSw);
+				return (r.getData());
+			}
+			off += 255;
+		}
+		data = Arrays.copyOfRange(data, off, data.length);
+		if (le < 0)
+			r = transmit(new CommandAPDU(0x00, ins, p1, p2, data));
+		else
+			r = transmit(new CommandAPDU(0x00, ins, p1, p2, data,
+			    le));
+		return (collect(r, expectSw));
+	}
+
+	private byte[]
+	collect(ResponseAPDU r, int expectSw)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(r.getData(), 0, r.getData().length);
+		while (r.getSW1() == 0x61) {
+			final int le = (r.getSW2() == 0) ? 256 : r.getSW2();
+			r = transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00,
+			    le));
+			out.write(r.getData(), 0, r.getData().length);
+		}
+		checkSw(r, expectSw);
+		return (out.toByteArray());
+	}
+
+	private static void
+	checkSw(ResponseAPDU r, int expectSw)
+	{
+		if (r.getSW() != expectSw) {
+			throw (new IllegalStateException(String.format(
+			    "expected SW %04X, got %04X", expectSw,
+			    r.getSW())));
+		}
+	}
+
+	private byte[]
+	select()
+	{
+		return (xfer(0xA4, 0x04, 0x00, unhex(PIV_AID), 256, 0x9000));
+	}
+
+	private void
+	adminAuth() throws Exception
+	{
+		final byte[] ch = xfer(0x87, 0x03, 0x9B, unhex("7C028100"), 256,
+		    0x9000);
+		final Cipher des = Cipher.getInstance("DESede/ECB/NoPadding");
+		des.init(Cipher.ENCRYPT_MODE,
+		    new SecretKeySpec(DEFAULT_ADMIN_KEY, "DESede"));
+		final byte[] resp = des.doFinal(Arrays.copyOfRange(ch, 4, 12));
+		xfer(0x87, 0x03, 0x9B, concat(unhex("7C0A8208"), resp), -1,
+		    0x9000);
+	}
+
+	/* PUT DATA of a whole object (the value of its 53 tag). */
+	private void
+	putObject(String tag, byte[] value)
+	{
+		putObject(tag, value, 0x9000);
+	}
+
+	private void
+	putObject(String tag, byte[] value, int expectSw)
+	{
+		xfer(0xDB, 0x3F, 0xFF, concat(unhex("5C03" + tag),
+		    tlv(0x53, value)), -1, expectSw);
+	}
+
+	/* GET DATA of an object, returning the value of its 53 tag. */
+	private byte[]
+	getObject(String tag)
+	{
+		final byte[] obj = xfer(0xCB, 0x3F, 0xFF, unhex("5C03" + tag),
+		    256, 0x9000);
+		check(obj.length > 0 && obj[0] == (byte)0x53, "53 tag");
+		return (findTag(obj, 0, (byte)0x53));
+	}
+
+	/* The value of a certificate object: 70 { cert } 71 01 00 FE 00 */
+	private static byte[]
+	certObject(byte[] cert)
+	{
+		return (concat(tlv(0x70, cert), unhex("710100FE00")));
+	}
+
+	/* Random (so incompressible) bytes, the same each time for a seed. */
+	private static byte[]
+	filler(int len, long seed)
+	{
+		final byte[] b = new byte[len];
+		new Random(seed).nextBytes(b);
+		return (b);
+	}
+
+	private static byte[]
+	gunzip(byte[] gz) throws IOException
+	{
+		final GZIPInputStream in = new GZIPInputStream(
+		    new ByteArrayInputStream(gz));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[512];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		return (out.toByteArray());
+	}
+
+	private static byte[]
+	tlv(int tag, byte[] value)
+	{
+		final byte[] len;
+		if (value.length < 0x80) {
+			len = new byte[] { (byte)value.length };
+		} else if (value.length < 0x100) {
+			len = new byte[] { (byte)0x81, (byte)value.length };
+		} else {
+			len = new byte[] { (byte)0x82,
+			    (byte)(value.length >> 8), (byte)value.length };
+		}
+		return (concat(new byte[] { (byte)tag }, len, value));
+	}
+
+	/* The attestation signing cert (53 { 70 { cert } ... }) */
+	private X509Certificate
+	f9Cert() throws Exception
+	{
+		final byte[] obj = xfer(0xCB, 0x3F, 0xFF, unhex("5C035FFF01"),
+		    256, 0x9000);
+		return (parseCert(findTag(findTag(obj, 0, (byte)0x53), 0,
+		    (byte)0x70)));
+	}
+
+	private static X509Certificate
+	parseCert(byte[] der) throws Exception
+	{
+		final CertificateFactory cf = CertificateFactory.getInstance(
+		    "X.509");
+		return ((X509Certificate)cf.generateCertificate(
+		    new ByteArrayInputStream(der)));
+	}
+
+	/*
+	 * Checks that cert is for the P-256 public key in a GENERATE
+	 * ASYMMETRIC response (7F49 { 86 { 04 || x || y } }).
+	 */
+	private static void
+	checkEcPoint(X509Certificate cert, byte[] genResp)
+	{
+		final byte[] pt = findTag(findTag(genResp, 0, (byte)0x49), 0,
+		    (byte)0x86);
+		final ECPublicKey pub = (ECPublicKey)cert.getPublicKey();
+		check(pt != null && pt.length == 65 &&
+		    pub.getW().getAffineX().equals(
+		    new BigInteger(1, Arrays.copyOfRange(pt, 1, 33))) &&
+		    pub.getW().getAffineY().equals(
+		    new BigInteger(1, Arrays.copyOfRange(pt, 33, 65))),
+		    "attested key is the slot's key");
+	}
+
+	/*
+	 * The P-256 public key in a GENERATE ASYMMETRIC response
+	 * (7F49 { 86 { 04 || x || y } }).
+	 */
+	private static PublicKey
+	ecPublicKey(byte[] genResp) throws Exception
+	{
+		final byte[] pt = findTag(findTag(genResp, 0, (byte)0x49), 0,
+		    (byte)0x86);
+		check(pt != null && pt.length == 65, "EC point");
+		final AlgorithmParameters ap = AlgorithmParameters.getInstance(
+		    "EC");
+		ap.init(new ECGenParameterSpec("secp256r1"));
+		final ECPoint w = new ECPoint(
+		    new BigInteger(1, Arrays.copyOfRange(pt, 1, 33)),
+		    new BigInteger(1, Arrays.copyOfRange(pt, 33, 65)));
+		return (KeyFactory.getInstance("EC").generatePublic(
+		    new ECPublicKeySpec(w, ap.getParameterSpec(
+		    ECParameterSpec.class))));
+	}
+
+	/*
+	 * The values of all the tags in a BER-TLV structure, which must all
+	 * be the given (one-byte) tag.
+	 */
+	private static List<byte[]>
+	allTags(byte[] buf, byte tag)
+	{
+		final List<byte[]> vals = new ArrayList<byte[]>();
+		int off = 0;
+		while (off < buf.length) {
+			check(buf[off] == tag, String.format("tag %02X", tag));
+			final byte[] v = findTag(buf, off, tag);
+			vals.add(v);
+			off += tlv(tag, v).length;
+		}
+		return (vals);
+	}
+
+	/*
+	 * Finds a tag inside a BER-TLV structure, starting at "off". Two-byte
+	 * tags are matched on their second byte.
+	 */
+	private static byte[]
+	findTag(byte[] buf, int off, byte tag)
+	{
+		while (off + 1 < buf.length) {
+			byte t = buf[off++];
+			if ((t & 0x1F) == 0x1F)
+				t = buf[off++];
+			int len = buf[off++] & 0xFF;
+			if (len == 0x81) {
+				len = buf[off++] & 0xFF;
+			} else if (len == 0x82) {
+				len = ((buf[off] & 0xFF) << 8) |
+				    (buf[off + 1] & 0xFF);
+				off += 2;
+			} else if (len >= 0x80) {
+				throw (new IllegalStateException(String.format(
+				    "bad length %02X", len)));
+			}
+			if (t == tag) {
+				return (Arrays.copyOfRange(buf, off,
+				    off + len));
+			}
+			off += len;
+		}
+		return (null);
+	}
+
+	private static byte[]
+	concat(byte[]... parts)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] p : parts)
+			out.write(p, 0, p.length);
+		return (out.toByteArray());
+	}
+
+	private static byte[]
+	unhex(String s)
+	{
+		final byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; ++i) {
+			b[i] = (byte)Integer.parseInt(
+			    s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return (b);
+	}
+}